@@ -0,0 +1,63 @@
+import xyz.kumaraswamy.sketch.Sketch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+// runs every program of the corpus on the tree walker, on
+// the bytecode vm, with every fun that can be compiled
+// by the jit compiled and without the optimizer passes,
+// their output has to be the same
+public class Differential {
+
+    public static void main(String[] args) throws IOException {
+        File corpus = new File(args.length > 0 ? args[0] : "corpus");
+        File[] programs = corpus.listFiles((dir, name) -> name.endsWith(".sketch"));
+        if (programs == null) {
+            throw new IOException("No corpus at " + corpus.getAbsolutePath());
+        }
+        Arrays.sort(programs);
+
+        int mismatches = 0;
+        for (File program : programs) {
+            String source = new String(Files.readAllBytes(program.toPath()));
+            String walked = run(source, false, 0, true);
+            String compiled = run(source, true, 0, true);
+            String jit = run(source, false, 1, true);
+            String plain = run(source, false, 0, false);
+            if (walked.equals(compiled) && walked.equals(jit) && walked.equals(plain)) {
+                System.out.println("ok " + program.getName());
+            } else {
+                mismatches++;
+                System.out.println("mismatch " + program.getName());
+                System.out.println("[tree]\n" + walked);
+                System.out.println("[bytecode]\n" + compiled);
+                System.out.println("[jit]\n" + jit);
+                System.out.println("[unoptimized]\n" + plain);
+            }
+        }
+        System.out.println(programs.length + " programs, " + mismatches + " mismatches");
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static String run(String source, boolean bytecode, int jitThreshold, boolean optimize) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Sketch sketch = new Sketch();
+        sketch.setOutputStream(stream);
+        sketch.setWarningStream(stream);
+        sketch.setOptimize(optimize);
+        sketch.setBytecode(bytecode);
+        sketch.setJitThreshold(jitThreshold);
+        try {
+            sketch.execute(source);
+        } catch (RuntimeException e) {
+            // the error is a part of the output
+            return stream + "error: " + e.getMessage() + "\n";
+        }
+        return stream.toString();
+    }
+}
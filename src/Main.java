@@ -1,6 +1,4 @@
 import xyz.kumaraswamy.sketch.Sketch;
-import xyz.kumaraswamy.sketch.nativs.Print;
-import xyz.kumaraswamy.sketch.nativs.Printf;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -19,10 +17,8 @@ public class Main {
          * println(123)
          */
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        Print.setOutputStream(stream);
-        Printf.setOutputStream(stream);
-
         Sketch sketch = new Sketch();
+        sketch.setOutputStream(stream);
         String lines = new String(Files.readAllBytes(Main.slime.toPath()));
 
         long start = System.nanoTime();
@@ -0,0 +1,197 @@
+import xyz.kumaraswamy.sketch.Sketch;
+import xyz.kumaraswamy.sketch.processor.CompiledScript;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// runs the programs of the corpus at the same time on many
+// threads, each one on its own Sketch and through one
+// CompiledScript shared by all the threads, what a program
+// prints and warns there has to be what it does when it runs alone,
+// a script stops at a return at the top, so it is
+// compared with a run of the script alone
+public class Stress {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 4;
+
+    // calls deeper than the java stack can go, the vm runs them on
+    // its frames, also the ones in an each, in an assignment to an
+    // element, in an array and in the args of a native or an import
+    private static final int DEEP = 100_000;
+    // one script run with inputs of other types on all the
+    // threads at the same time, the types its operators learn
+    // are shared by the runs, it has to give what it
+    // gives when it is run alone
+    private static final String MIXED_PROGRAM = """
+            fun add(a, b) { return a + b; };
+            fun less(a, b) { return a < b; };
+            val s = x;
+            val n = 0;
+            for i (1 -> 50) {
+              s = add(s, x);
+              if (less(i, limit)) { n = n + 1; };
+            };
+            return string(s, " ", n);
+            """;
+    private static final Object[] XS = {1L, 0.5, "a"};
+    private static final Object[] LIMITS = {25L, 25.5};
+
+    private static final String DEEP_PROGRAM = """
+            val g = 0;
+            fun depth(n) { if (n == 0) { return g; }; return 1 + depth(n - 1); };
+            print(depth(%1$d));
+            fun store(n, a) { if (n == 0) { return 0; }; a[0] = store(n - 1, a); return a[0] + 1; };
+            print(store(%1$d, array(1)));
+            fun walk(n, items) { if (n == 0) { return 0; }; val s = 0; each items -> x { s = walk(n - 1, items) + x; }; return s; };
+            print(walk(%1$d, [1]));
+            fun count(n) { if (n == 0) { return 0; }; return int(count(n - 1)) + 1; };
+            print(count(%1$d));
+            fun wrap(n) { if (n == 0) { return 0; }; val w = [wrap(n - 1)]; return w[0] + 1; };
+            print(wrap(%1$d));
+            fun text(n) { if (n == 0) { return 0; }; return int(string(text(n - 1) + 1, "")); };
+            print(text(%1$d));
+            with Sketch.random;
+            fun pick(n) { if (n == 0) { return 0; }; return random(pick(n - 1) + 1, n); };
+            print(pick(%1$d));
+            """.formatted(DEEP);
+
+    public static void main(String[] args) throws Exception {
+        File corpus = new File(args.length > 0 ? args[0] : "corpus");
+        File[] programs = corpus.listFiles((dir, name) -> name.endsWith(".sketch"));
+        if (programs == null) {
+            throw new IOException("No corpus at " + corpus.getAbsolutePath());
+        }
+        Arrays.sort(programs);
+
+        String[] sources = new String[programs.length];
+        CompiledScript[] scripts = new CompiledScript[programs.length];
+        // of the sketches and of the scripts
+        String[] expected = new String[programs.length * 2];
+        for (int i = 0; i < programs.length; i++) {
+            sources[i] = new String(Files.readAllBytes(programs[i].toPath()));
+            Sketch compiler = sketch(i % 2 == 0);
+            // its warnings are checked by the runs of the source
+            compiler.setWarningStream(OutputStream.nullOutputStream());
+            scripts[i] = compiler.compile(sources[i]);
+            expected[i * 2] = run(sources[i], i % 2 == 1);
+            expected[i * 2 + 1] = run(scripts[i]);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<String>> outputs = new ArrayList<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < programs.length; i++) {
+                String source = sources[i];
+                CompiledScript script = scripts[i];
+                boolean bytecode = i % 2 == 1;
+                outputs.add(pool.submit(() -> run(source, bytecode)));
+                outputs.add(pool.submit(() -> run(script)));
+            }
+        }
+        int mismatches = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            int program = i % expected.length;
+            if (!outputs.get(i).get().equals(expected[program])) {
+                mismatches++;
+                System.out.println("mismatch " + programs[program / 2].getName()
+                        + (program % 2 == 0 ? "" : " (compiled)"));
+            }
+        }
+        mismatches += mixed(pool, false) + mixed(pool, true);
+        pool.shutdown();
+
+        if (!run(sketch(true), DEEP_PROGRAM).equals((DEEP + "\n").repeat(7))) {
+            mismatches++;
+            System.out.println("mismatch calls " + DEEP + " deep");
+        }
+        Sketch limited = sketch(true);
+        limited.setMaxCallDepth(DEEP / 2);
+        if (!run(limited, DEEP_PROGRAM).equals("error: Calls more than " + DEEP / 2 + " deep\n")) {
+            mismatches++;
+            System.out.println("mismatch calls over the limit");
+        }
+        System.out.println(outputs.size() + " runs on " + THREADS + " threads, "
+                + mismatches + " mismatches");
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int mixed(ExecutorService pool, boolean bytecode) throws Exception {
+        List<Map<String, Object>> inputs = new ArrayList<>();
+        for (Object x : XS) {
+            for (Object limit : LIMITS) {
+                inputs.add(Map.of("x", x, "limit", limit));
+            }
+        }
+        String[] expected = new String[inputs.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = run(sketch(bytecode).compile(MIXED_PROGRAM, "x", "limit"), inputs.get(i));
+        }
+        CompiledScript shared = sketch(bytecode).compile(MIXED_PROGRAM, "x", "limit");
+        List<Future<String>> outputs = new ArrayList<>();
+        for (int round = 0; round < ROUNDS * THREADS; round++) {
+            for (Map<String, Object> input : inputs) {
+                outputs.add(pool.submit(() -> run(shared, input)));
+            }
+        }
+        int mismatches = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            if (!outputs.get(i).get().equals(expected[i % expected.length])) {
+                mismatches++;
+                System.out.println("mismatch mixed types " + inputs.get(i % expected.length)
+                        + (bytecode ? " (bytecode)" : ""));
+            }
+        }
+        return mismatches;
+    }
+
+    private static Sketch sketch(boolean bytecode) {
+        Sketch sketch = new Sketch();
+        sketch.setBytecode(bytecode);
+        sketch.setJitThreshold(1);
+        return sketch;
+    }
+
+    private static String run(String source, boolean bytecode) {
+        return run(sketch(bytecode), source);
+    }
+
+    private static String run(Sketch sketch, String source) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        sketch.setOutputStream(stream);
+        sketch.setWarningStream(stream);
+        try {
+            sketch.execute(source);
+        } catch (RuntimeException e) {
+            return stream + "error: " + e.getMessage() + "\n";
+        }
+        return stream.toString();
+    }
+
+    private static String run(CompiledScript script) {
+        return run(script, Map.of());
+    }
+
+    private static String run(CompiledScript script, Map<String, ?> values) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Object result;
+        try {
+            result = script.run(values, stream);
+        } catch (RuntimeException e) {
+            return stream + "error: " + e.getMessage() + "\n";
+        }
+        return stream + "result: " + Arrays.deepToString(new Object[]{result}) + "\n";
+    }
+}
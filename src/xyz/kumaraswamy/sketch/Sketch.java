@@ -3,27 +3,178 @@ package xyz.kumaraswamy.sketch;
 import xyz.kumaraswamy.sketch.lex.TokenType;
 import xyz.kumaraswamy.sketch.lex.Lexer;
 import xyz.kumaraswamy.sketch.lex.Token;
+import xyz.kumaraswamy.sketch.memory.Layout;
 import xyz.kumaraswamy.sketch.memory.Memory;
+import xyz.kumaraswamy.sketch.processor.CompiledScript;
 import xyz.kumaraswamy.sketch.processor.Expression;
+import xyz.kumaraswamy.sketch.processor.Fuser;
+import xyz.kumaraswamy.sketch.processor.Hoister;
+import xyz.kumaraswamy.sketch.processor.Inliner;
+import xyz.kumaraswamy.sketch.processor.Memo;
+import xyz.kumaraswamy.sketch.processor.Optimizer;
 import xyz.kumaraswamy.sketch.processor.Parser;
 import xyz.kumaraswamy.sketch.processor.Evaluator;
+import xyz.kumaraswamy.sketch.processor.Resolver;
+import xyz.kumaraswamy.sketch.processor.VM;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
 
 public class Sketch {
 
     private final Evaluator executor;
+    // the global layout is kept between
+    // executions, like the head memory
+    private final Resolver resolver;
+    private final VM vm;
+
+    private boolean optimize = true;
+    private boolean debug = false;
+    // the most nodes a fun body can have to be inlined
+    private int inlineThreshold = 16;
+    // runs compiled bytecode instead of walking the tree
+    private boolean bytecode = false;
+    private PrintStream warnings = System.err;
 
     public Sketch() {
-        executor = new Evaluator(new Memory("", null));
+        Layout global = new Layout();
+        Memory memory = new Memory("", null);
+        memory.enter(global);
+
+        executor = new Evaluator(memory);
+        resolver = new Resolver(global);
+        vm = new VM(executor);
+    }
+
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    // 0 turns off inlining
+    public void setInlineThreshold(int inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    public void setBytecode(boolean bytecode) {
+        this.bytecode = bytecode;
+        executor.setVM(bytecode ? vm : null);
+    }
+
+    // calls a fun needs before it is compiled
+    // to JVM bytecode, 0 turns it off
+    public void setJitThreshold(int threshold) {
+        executor.setJitThreshold(threshold);
+    }
+
+    // the most calls the bytecode vm lets wait at a
+    // time, its calls are on the heap and not on the
+    // java stack, so -Xss does not limit them
+    public void setMaxCallDepth(int depth) {
+        vm.setMaxDepth(depth);
+    }
+
+    // where print() and printf() of this sketch write,
+    // System.out by default
+    public void setOutputStream(OutputStream stream) {
+        executor.setOutput(stream);
+    }
+
+    // where the warnings found when a program is resolved
+    // are written, like those of memo funs, System.err by default
+    public void setWarningStream(OutputStream stream) {
+        warnings = stream instanceof PrintStream print ? print : new PrintStream(stream, true);
+        resolver.setWarnings(warnings);
+    }
+
+    // results of the 'memo fun' calls and their stats
+    public Memo getMemo() {
+        return executor.memo;
+    }
+
+    // prints the tree before and after it is optimized, the
+    // calls inlined, the expressions hoisted and the number
+    // of nodes fused of each shape
+    public void setDebug(boolean debug) {
+        this.debug = debug;
     }
 
     public void execute(String source) {
+        List<Expression> expressions = optimize(parse(source));
+        resolver.resolve(expressions);
+        if (bytecode) {
+            vm.run(expressions);
+            return;
+        }
+        for (Expression expression : expressions) {
+            expression.accept(executor);
+        }
+    }
+
+    // parses, optimizes and resolves the source once, to be run
+    // many times with other values of the inputs, the names
+    // it can use without defining them, the settings of this
+    // sketch at the time are kept, its memory is not seen
+    public CompiledScript compile(String source, String... inputs) {
+        List<Expression> expressions = optimize(parse(source));
+        Layout global = new Layout();
+        for (String input : inputs) {
+            global.declare(input);
+        }
+        Resolver resolver = new Resolver(global);
+        resolver.setWarnings(warnings);
+        resolver.resolve(expressions);
+        return new CompiledScript(expressions, global, List.of(inputs), bytecode,
+                executor.jitThreshold(), vm.maxDepth());
+    }
+
+    private static List<Expression> parse(String source) {
         Lexer lexer = new Lexer(source);
 
         Parser parser = new Parser(lexer.scanTokens());
-        for (Expression expression : parser.parseTokens()) {
-              // System.out.println(expression.visit());
-            // uncomment to view the tree
-            expression.accept(executor);
+        return parser.parseTokens();
+    }
+
+    private List<Expression> optimize(List<Expression> expressions) {
+        if (optimize) {
+            dump("before", expressions);
+            expressions = new Optimizer().optimize(expressions);
+            Inliner inliner = new Inliner(inlineThreshold);
+            expressions = inliner.inline(expressions);
+            if (!inliner.report().isEmpty()) {
+                // literal args can be folded now
+                expressions = new Optimizer().optimize(expressions);
+                if (debug) {
+                    for (String call : inliner.report()) {
+                        System.out.println("[inlined] " + call);
+                    }
+                }
+            }
+            Hoister hoister = new Hoister();
+            expressions = hoister.hoist(expressions);
+            if (debug) {
+                for (String hoisted : hoister.report()) {
+                    System.out.println("[hoisted] " + hoisted);
+                }
+            }
+            Fuser fuser = new Fuser();
+            expressions = fuser.fuse(expressions);
+            if (debug) {
+                fuser.report().forEach((shape, count) ->
+                        System.out.println("[fused] " + shape + ": " + count));
+            }
+            dump("after", expressions);
+        }
+        return expressions;
+    }
+
+    private void dump(String stage, List<Expression> expressions) {
+        if (!debug) {
+            return;
+        }
+        System.out.println("[" + stage + "]");
+        for (Expression expression : expressions) {
+            System.out.println(expression.visit());
         }
     }
 
@@ -36,6 +187,11 @@ public class Sketch {
         throw new IllegalArgumentException(  "[line " + line + "] Error" + where + ": " + message);
     }
 
+    public static void warn(PrintStream stream, Token token, String message) {
+        stream.println("[line " + token.line + "] Warning at '" +
+                token.lexeme + "': " + message);
+    }
+
     public static void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
@@ -144,10 +144,18 @@ public class Lexer {
             // Consume the "."
             advance();
             while (isDigit(peek())) advance();
+            addToken(TokenType.NUMBER,
+                    Double.parseDouble(source.substring(start, current)));
+            return;
         }
 
-        addToken(TokenType.NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        String digits = source.substring(start, current);
+        try {
+            addToken(TokenType.NUMBER, Long.parseLong(digits));
+        } catch (NumberFormatException e) {
+            // too long for an integer
+            addToken(TokenType.NUMBER, Double.parseDouble(digits));
+        }
     }
 
     private void minusChar() {
@@ -0,0 +1,36 @@
+package xyz.kumaraswamy.sketch.memory;
+
+import java.util.ArrayList;
+
+// names of the slots of a memory, laid
+// out by the Resolver before evaluation
+public class Layout {
+
+    private final ArrayList<String> names = new ArrayList<>();
+
+    public int declare(String name) {
+        int slot = names.indexOf(name);
+        if (slot != -1) {
+            return slot;
+        }
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    public int slot(String name) {
+        return names.indexOf(name);
+    }
+
+    public String name(int slot) {
+        return names.get(slot);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(names);
+    }
+}
@@ -1,9 +1,17 @@
 package xyz.kumaraswamy.sketch.memory;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class Memory {
 
+    // a slot that is not defined yet
+    private static final Object UNSET = new Object();
+    // a slot that holds its value unboxed in doubles[]
+    private static final Object NUMBER = new Object();
+    // and in longs[]
+    private static final Object INTEGER = new Object();
+
     private final String name;
     // sMemory - > super memory
     private final Memory sMemory;
@@ -15,6 +23,7 @@ public class Memory {
 
     public Memory upwards() {
         values.clear();
+        clearSlots();
         // reuse memory objects
         // for lower memory system
         sMemory.next = this;
@@ -29,9 +38,158 @@ public class Memory {
 
     private final HashMap<String, Object> values = new HashMap<>();
 
-    public void defineVal(String name, Object value) {
+    // values resolved to a (depth, slot) by the
+    // Resolver live here, names are only looked up
+    // for variables that are not resolved
+    private Layout layout;
+    private Object[] slots = new Object[0];
+    private double[] doubles = new double[0];
+    private long[] longs = new long[0];
+
+    public void enter(Layout layout) {
+        this.layout = layout;
+        int size = layout.size();
+        if (slots.length < size) {
+            slots = new Object[size];
+            doubles = new double[size];
+            longs = new long[size];
+        }
+        clearSlots();
+    }
+
+    private void clearSlots() {
+        Arrays.fill(slots, UNSET);
+    }
+
+    public Memory at(int depth) {
+        Memory memory = this;
+        while (depth-- > 0) {
+            memory = memory.sMemory;
+        }
+        return memory;
+    }
+
+    public Object getAt(int depth, int slot, String name) {
+        Memory memory = at(depth);
+        Object[] slots = memory.slots;
+        if (slot < slots.length) {
+            Object value = slots[slot];
+            if (value == NUMBER) {
+                return memory.doubles[slot];
+            } else if (value == INTEGER) {
+                return memory.longs[slot];
+            }
+            if (value != UNSET) {
+                return value;
+            }
+        }
+        // not defined yet
+        return getVal(name);
+    }
+
+    public void setAt(int depth, int slot, String name, Object value) {
+        Object[] slots = at(depth).slots;
+        if (slot < slots.length && slots[slot] != UNSET) {
+            slots[slot] = value;
+        } else {
+            push(name, value);
+        }
+    }
+
+    public void defineAt(int slot, String name, Object value) {
+        if (slot >= slots.length) {
+            // the head memory layout grows
+            // with every execution
+            int size = slots.length;
+            slots = Arrays.copyOf(slots, layout.size());
+            doubles = Arrays.copyOf(doubles, slots.length);
+            longs = Arrays.copyOf(longs, slots.length);
+            Arrays.fill(slots, size, slots.length, UNSET);
+        } else if (slots[slot] != UNSET) {
+            throw alreadyDefined(name);
+        }
         if (values.containsKey(name)) {
-            throw new IllegalArgumentException("[" + this.name + "] Variable name already defined \"" + name + "\"");
+            throw alreadyDefined(name);
+        }
+        slots[slot] = value;
+    }
+
+    public void setSlot(int slot, Object value) {
+        slots[slot] = value;
+    }
+
+    public boolean hasDouble(int slot) {
+        return slot < slots.length && slots[slot] == NUMBER;
+    }
+
+    public double getDouble(int slot) {
+        return doubles[slot];
+    }
+
+    public void setDouble(int slot, double value) {
+        slots[slot] = NUMBER;
+        doubles[slot] = value;
+    }
+
+    public void setDoubleAt(int depth, int slot, String name, double value) {
+        Memory memory = at(depth);
+        if (slot < memory.slots.length && memory.slots[slot] != UNSET) {
+            memory.setDouble(slot, value);
+        } else {
+            push(name, value);
+        }
+    }
+
+    public void defineDoubleAt(int slot, String name, double value) {
+        defineAt(slot, name, null);
+        setDouble(slot, value);
+    }
+
+    public boolean hasLong(int slot) {
+        return slot < slots.length && slots[slot] == INTEGER;
+    }
+
+    public long getLong(int slot) {
+        return longs[slot];
+    }
+
+    public void setLong(int slot, long value) {
+        slots[slot] = INTEGER;
+        longs[slot] = value;
+    }
+
+    public void setLongAt(int depth, int slot, String name, long value) {
+        Memory memory = at(depth);
+        if (slot < memory.slots.length && memory.slots[slot] != UNSET) {
+            memory.setLong(slot, value);
+        } else {
+            push(name, value);
+        }
+    }
+
+    public void defineLongAt(int slot, String name, long value) {
+        defineAt(slot, name, null);
+        setLong(slot, value);
+    }
+
+    private int slotOf(String name) {
+        if (layout == null) {
+            return -1;
+        }
+        int slot = layout.slot(name);
+        if (slot == -1 || slot >= slots.length || slots[slot] == UNSET) {
+            return -1;
+        }
+        return slot;
+    }
+
+    private IllegalArgumentException alreadyDefined(String name) {
+        return new IllegalArgumentException("[" + this.name + "] Variable name already defined \"" + name + "\"");
+    }
+
+    public void defineVal(String name, Object value) {
+        if (values.containsKey(name) || slotOf(name) != -1) {
+            throw alreadyDefined(name);
         }
         values.put(name, value);
     }
@@ -40,19 +198,40 @@ public class Memory {
         values.put(name, value);
     }
 
+    // the chain is walked in a loop, it is as long as
+    // the calls are deep
     public void push(String name, Object value) {
-        if (sMemory != null && !values.containsKey(name)) {
-            sMemory.push(name, value);
-        } else {
-            values.put(name, value);
+        Memory memory = this;
+        while (true) {
+            int slot = memory.slotOf(name);
+            if (slot != -1) {
+                memory.slots[slot] = value;
+                return;
+            }
+            if (memory.sMemory == null || memory.values.containsKey(name)) {
+                memory.values.put(name, value);
+                return;
+            }
+            memory = memory.sMemory;
         }
     }
 
     public Object getVal(String name) {
-        if (sMemory != null && !values.containsKey(name)) {
-            return sMemory.getVal(name);
+        Memory memory = this;
+        while (true) {
+            int slot = memory.slotOf(name);
+            if (slot != -1) {
+                Object value = memory.slots[slot];
+                if (value == NUMBER) {
+                    return memory.doubles[slot];
+                }
+                return value == INTEGER ? memory.longs[slot] : value;
+            }
+            if (memory.sMemory == null || memory.values.containsKey(name)) {
+                return memory.values.get(name);
+            }
+            memory = memory.sMemory;
         }
-        return values.get(name);
     }
 
     private final HashMap<String, Object> functions = new HashMap<>();
@@ -65,13 +244,15 @@ public class Memory {
     }
 
     public Object getFun(String name) {
-        if (sMemory != null && !functions.containsKey(name)) {
-            return sMemory.getFun(name);
+        Memory memory = this;
+        while (memory.sMemory != null && !memory.functions.containsKey(name)) {
+            memory = memory.sMemory;
         }
-        return functions.get(name);
+        return memory.functions.get(name);
     }
 
     public void delete() {
         values.clear();
+        clearSlots();
     }
 }
@@ -1,10 +1,9 @@
 package xyz.kumaraswamy.sketch.nativs;
 
+import xyz.kumaraswamy.sketch.processor.NumberArray;
 import xyz.kumaraswamy.sketch.processor.Evaluator;
-import xyz.kumaraswamy.sketch.processor.Expression;
 import xyz.kumaraswamy.sketch.processor.RuntimeError;
 
-import java.util.List;
 
 public class Array extends Native {
     public Array(Evaluator eval) {
@@ -12,11 +11,12 @@ public class Array extends Native {
     }
 
     @Override
-    public Object accept(List<Expression> exprs) {
-        if (exprs.size() == 1) {
-            Object val = eval.evaluate(exprs.get(0));
-            if (val instanceof Double number) {
-                return new Object[number.intValue()];
+    public Object call(Object[] values) {
+        if (values.length == 1) {
+            Object val = values[0];
+            if (val instanceof Long || val instanceof Double) {
+                // numbers until something else is set
+                return NumberArray.nulls(((Number) val).intValue());
             }
             throw new RuntimeError("Expected a number for array()");
         }
@@ -1,10 +1,9 @@
 package xyz.kumaraswamy.sketch.nativs;
 
+import xyz.kumaraswamy.sketch.processor.NumberArray;
 import xyz.kumaraswamy.sketch.processor.Evaluator;
-import xyz.kumaraswamy.sketch.processor.Expression;
 import xyz.kumaraswamy.sketch.processor.RuntimeError;
 
-import java.util.List;
 
 public class Len extends Native {
     public Len(Evaluator eval) {
@@ -12,20 +11,22 @@ public class Len extends Native {
     }
 
     @Override
-    public Object accept(List<Expression> exprs) {
-        if (exprs.size() == 1) {
-            Object val = eval.evaluate(exprs.get(0));
+    public Object call(Object[] values) {
+        if (values.length == 1) {
+            Object val = values[0];
             if (val == null)
-                return 0;
+                return 0L;
             if (val instanceof Object[] array)
-                return (double) array.length;
-            if (val instanceof java.lang.String string)
-                return (double) string.length();
+                return (long) array.length;
+            if (val instanceof NumberArray array)
+                return (long) array.length();
+            if (val instanceof CharSequence string)
+                return (long) string.length();
             if (val instanceof Boolean bool)
-                return bool ? 1 : 0;
-            if (val instanceof Double number)
+                return bool ? 1L : 0L;
+            if (val instanceof Long || val instanceof Double)
                 // return itself
-                return number;
+                return val;
             throw new RuntimeError("Unknown convert: " + val);
         }
         throw new RuntimeError("Expected one argument for len()");
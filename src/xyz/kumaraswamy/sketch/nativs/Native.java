@@ -19,6 +19,7 @@ public abstract class Native {
             case "int" -> new Int(eval);
 
             case "array" -> new Array(eval);
+            case "numbers" -> new Numbers(eval);
             default -> null;
         };
     }
@@ -29,5 +30,16 @@ public abstract class Native {
         this.eval = eval;
     }
 
-    public abstract Object accept(List<Expression> exprs);
+    // the args are run in order before the native is, by
+    // the tree walker here and by the vm on its own stack
+    public Object accept(List<Expression> exprs) {
+        Object[] values = new Object[exprs.size()];
+        for (int i = 0; i < values.length; i++) {
+            Expression expr = exprs.get(i);
+            values[i] = expr == null ? null : eval.evaluate(expr);
+        }
+        return call(values);
+    }
+
+    public abstract Object call(Object[] values);
 }
@@ -0,0 +1,25 @@
+package xyz.kumaraswamy.sketch.nativs;
+
+import xyz.kumaraswamy.sketch.processor.NumberArray;
+import xyz.kumaraswamy.sketch.processor.Evaluator;
+import xyz.kumaraswamy.sketch.processor.RuntimeError;
+
+
+public class Numbers extends Native {
+    public Numbers(Evaluator eval) {
+        super(eval);
+    }
+
+    @Override
+    public Object call(Object[] values) {
+        if (values.length == 1) {
+            Object val = values[0];
+            if (val instanceof Long || val instanceof Double) {
+                // filled with 0, numbers until something else is set
+                return NumberArray.zeros(((Number) val).intValue());
+            }
+            throw new RuntimeError("Expected a number for numbers()");
+        }
+        throw new RuntimeError("Expected one argument for numbers()");
+    }
+}
@@ -2,37 +2,24 @@ package xyz.kumaraswamy.sketch.nativs;
 
 import xyz.kumaraswamy.sketch.memory.Memory;
 import xyz.kumaraswamy.sketch.processor.Evaluator;
-import xyz.kumaraswamy.sketch.processor.Expression;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.List;
 
 public class Printf extends Native{
-    static OutputStream stream;
-
-    public static void setOutputStream(OutputStream stream) {
-        Printf.stream = stream;
-    }
-
-
     public Printf(Evaluator eval) {
         super(eval);
-        if (  stream  == null) {
-            stream = System.out;
-        }
     }
 
     StringBuilder val;
 
     @Override
-    public Object accept(List<Expression> exprs) {
-        if (exprs.size() != 1) {
+    public Object call(Object[] values) {
+        if (values.length != 1) {
             throw new RuntimeException("Expected one argument for printf()");
         }
-        Object object = eval.evaluate(exprs.get(0));
-        if (object instanceof java.lang.String fText) {
+        Object object = values[0];
+        if (object instanceof CharSequence fText) {
             val = new StringBuilder(fText);
             Memory memory = eval.memory;
 
@@ -58,12 +45,11 @@ public class Printf extends Native{
                     }
                 }
             }
-            write(val.toString().getBytes());
+            write((val + "\n").getBytes());
         } else {
             if (object instanceof Object[] array) object = Arrays.toString(array);
-            write(java.lang.String.valueOf(object).getBytes());
+            write((object + "\n").getBytes());
         }
-        write(new byte[] {'\n'});
         return null;
     }
 
@@ -82,7 +68,7 @@ public class Printf extends Native{
 
     private void write(byte[] write) {
         try {
-            stream.write(write);
+            eval.output().write(write);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
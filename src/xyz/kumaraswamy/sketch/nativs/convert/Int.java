@@ -2,10 +2,8 @@ package xyz.kumaraswamy.sketch.nativs.convert;
 
 import xyz.kumaraswamy.sketch.nativs.Native;
 import xyz.kumaraswamy.sketch.processor.Evaluator;
-import xyz.kumaraswamy.sketch.processor.Expression;
 import xyz.kumaraswamy.sketch.processor.RuntimeError;
 
-import java.util.List;
 
 public class Int extends Native {
     public Int(Evaluator eval) {
@@ -13,13 +11,18 @@ public class Int extends Native {
     }
 
     @Override
-    public Object accept(List<Expression> exprs) {
-        if (exprs.size() == 1) {
-            Object val = eval.evaluate(exprs.get(0));
-            if (val instanceof Double) {
+    public Object call(Object[] values) {
+        if (values.length == 1) {
+            Object val = values[0];
+            if (val instanceof Long || val instanceof Double) {
                 return val;
             }
-            return Double.parseDouble(String.valueOf(val));
+            String text = String.valueOf(val);
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                return Double.parseDouble(text);
+            }
         }
         throw new RuntimeError("number() argument accepts only one value");
     }
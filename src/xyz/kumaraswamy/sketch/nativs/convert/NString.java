@@ -2,9 +2,7 @@ package xyz.kumaraswamy.sketch.nativs.convert;
 
 import xyz.kumaraswamy.sketch.nativs.Native;
 import xyz.kumaraswamy.sketch.processor.Evaluator;
-import xyz.kumaraswamy.sketch.processor.Expression;
 
-import java.util.List;
 
 public class NString extends Native {
     public NString(Evaluator eval) {
@@ -12,10 +10,9 @@ public class NString extends Native {
     }
 
     @Override
-    public Object accept(List<Expression> exprs) {
+    public Object call(Object[] values) {
         StringBuilder builder = new StringBuilder();
-        for (Expression expr : exprs) {
-            Object val = eval.evaluate(expr);
+        for (Object val : values) {
             builder.append(val);
         }
         return builder.toString();
@@ -5,11 +5,29 @@ import xyz.kumaraswamy.sketch.processor.Expression;
 import xyz.kumaraswamy.sketch.processor.RuntimeError;
 
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Import {
 
     private static final String BASE_PACKAGE = "xyz.kumaraswamy.sketch.nativs.sketch.";
 
+    // functions of a class by their name, made once per
+    // class and shared by all the evaluators
+    private static final ClassValue<Map<String, Imported>> functions = new ClassValue<>() {
+        @Override
+        protected Map<String, Imported> computeValue(Class<?> clazz) {
+            Map<String, Imported> functions = new HashMap<>();
+            for (Method method : clazz.getMethods()) {
+                if (Imported.accepts(method)) {
+                    // one method name can be used one time
+                    functions.putIfAbsent(method.getName(), new Imported(method));
+                }
+            }
+            return functions;
+        }
+    };
+
     private final Evaluator eval;
 
     public Import(Evaluator eval) {
@@ -27,22 +45,15 @@ public class Import {
         } catch (ClassNotFoundException e) {
             throw new RuntimeError("[with] did not find \"" + from + "\"");
         }
-        Method[] methods = clazz.getMethods();
 
         String funcName = with.func.lexeme;
-        Method func = null;
-        for (Method method : methods) {
-            if (method.getName().equals(funcName)) {
-                func = method;
-                break;
-            }
-        }
+        Imported func = functions.get(clazz).get(funcName);
         if (func == null) {
             throw new RuntimeError("[with] did not find func \"" +
                     funcName + "\" from \"" + from + "\"");
         }
 
         String declare = with.as == null ? funcName : with.as.lexeme;
-        eval.memory.defineFun(declare, func);
+        eval.defineFun(declare, func);
     }
 }
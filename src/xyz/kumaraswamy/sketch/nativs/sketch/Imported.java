@@ -0,0 +1,87 @@
+package xyz.kumaraswamy.sketch.nativs.sketch;
+
+import lombok.SneakyThrows;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+// a java function brought in by the 'with' statement,
+// functions of upto two args are bound to generated
+// lambdas, so they are called without an args array
+public class Imported {
+
+    public interface Arity0 {
+        Object call();
+    }
+
+    public interface Arity1 {
+        Object call(Object a);
+    }
+
+    public interface Arity2 {
+        Object call(Object a, Object b);
+    }
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    public final String name;
+    public final int arity;
+
+    private Arity0 arity0;
+    private Arity1 arity1;
+    private Arity2 arity2;
+    // for the other functions, (Object[])Object
+    private MethodHandle spread;
+
+    @SneakyThrows
+    Imported(Method method) {
+        name = method.getName();
+        arity = method.getParameterCount();
+
+        MethodHandle handle = lookup.unreflect(method);
+        MethodType type = handle.type();
+        if (arity <= 2 && type.returnType() != void.class) {
+            Class<?> face = arity == 0 ? Arity0.class
+                    : arity == 1 ? Arity1.class : Arity2.class;
+            CallSite site = LambdaMetafactory.metafactory(lookup, "call",
+                    MethodType.methodType(face),
+                    MethodType.genericMethodType(arity),
+                    handle, type.wrap());
+            Object function = site.getTarget().invoke();
+            switch (arity) {
+                case 0 -> arity0 = (Arity0) function;
+                case 1 -> arity1 = (Arity1) function;
+                default -> arity2 = (Arity2) function;
+            }
+        } else {
+            spread = handle.asType(MethodType.genericMethodType(arity))
+                    .asSpreader(Object[].class, arity);
+        }
+    }
+
+    static boolean accepts(Method method) {
+        return Modifier.isStatic(method.getModifiers());
+    }
+
+    public Object call() {
+        return arity0 != null ? arity0.call() : call(new Object[0]);
+    }
+
+    public Object call(Object a) {
+        return arity1 != null ? arity1.call(a) : call(new Object[]{a});
+    }
+
+    public Object call(Object a, Object b) {
+        return arity2 != null ? arity2.call(a, b) : call(new Object[]{a, b});
+    }
+
+    @SneakyThrows
+    public Object call(Object[] args) {
+        return (Object) spread.invokeExact(args);
+    }
+}
@@ -11,13 +11,13 @@ import java.util.concurrent.ThreadLocalRandom;
 
 @SuppressWarnings("unused")
 public class Sketch {
-    public static double random(Double start, Double end) {
+    public static long random(Number start, Number end) {
         int min = start.intValue();
         int max = end.intValue();
         return ThreadLocalRandom.current().nextInt(min, max + 1);
     }
 
-    public static double systemTime() {
+    public static long systemTime() {
         return System.currentTimeMillis();
     }
 }
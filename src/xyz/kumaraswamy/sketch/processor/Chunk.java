@@ -0,0 +1,32 @@
+package xyz.kumaraswamy.sketch.processor;
+
+// compiled statements, made by the Compiler and run by the VM
+final class Chunk {
+
+    final int[] code;
+    final Object[] constants;
+    // the number constants unboxed, at the same index
+    final double[] numbers;
+    // and the integer constants
+    final long[] integers;
+    // the most values on the stack at a time
+    final int stack;
+    // registers of the for loops
+    final int loops;
+
+    Chunk(int[] code, Object[] constants, int stack, int loops) {
+        this.code = code;
+        this.constants = constants;
+        numbers = new double[constants.length];
+        integers = new long[constants.length];
+        for (int i = 0; i < constants.length; i++) {
+            if (constants[i] instanceof Double number) {
+                numbers[i] = number;
+            } else if (constants[i] instanceof Long integer) {
+                integers[i] = integer;
+            }
+        }
+        this.stack = stack;
+        this.loops = loops;
+    }
+}
@@ -0,0 +1,264 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import lombok.SneakyThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// writes a class file by hand for the Jit, it is of
+// version 49 so the verifier does not need stack map
+// frames, only what the Jit emits is here
+final class ClassFile {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int LCONST_0 = 0x09;
+    static final int LCONST_1 = 0x0a;
+    static final int DCONST_0 = 0x0e;
+    static final int DCONST_1 = 0x0f;
+    static final int BIPUSH = 0x10;
+    static final int LDC2_W = 0x14;
+    static final int LLOAD = 0x16;
+    static final int DLOAD = 0x18;
+    static final int ALOAD_0 = 0x2a;
+    static final int ALOAD_1 = 0x2b;
+    static final int LALOAD = 0x2f;
+    static final int DALOAD = 0x31;
+    static final int LSTORE = 0x37;
+    static final int DSTORE = 0x39;
+    static final int DUP2 = 0x5c;
+    static final int LADD = 0x61;
+    static final int DADD = 0x63;
+    static final int LSUB = 0x65;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int LREM = 0x71;
+    static final int DREM = 0x73;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int L2D = 0x8a;
+    static final int LCMP = 0x94;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int LRETURN = 0xad;
+    static final int DRETURN = 0xaf;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> entries = new HashMap<>();
+    private int poolSize = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int anInterface;
+
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName, String interfaceName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        anInterface = classRef(interfaceName);
+    }
+
+    @SneakyThrows
+    private int entry(String key, int slots, byte[] bytes) {
+        Integer index = entries.get(key);
+        if (index == null) {
+            index = poolSize;
+            poolSize += slots;
+            pool.write(bytes);
+            entries.put(key, index);
+        }
+        return index;
+    }
+
+    @SneakyThrows
+    int utf8(String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeUTF(value);
+        return entry("utf8 " + value, 1, bytes.toByteArray());
+    }
+
+    int classRef(String name) {
+        int utf8 = utf8(name);
+        return entry("class " + name, 1, new byte[]{
+                7, (byte) (utf8 >> 8), (byte) utf8});
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int n = utf8(name);
+        int d = utf8(descriptor);
+        return entry("nat " + name + " " + descriptor, 1, new byte[]{
+                12, (byte) (n >> 8), (byte) n, (byte) (d >> 8), (byte) d});
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int c = classRef(owner);
+        int nt = nameAndType(name, descriptor);
+        return entry("method " + owner + "." + name + descriptor, 1, new byte[]{
+                10, (byte) (c >> 8), (byte) c, (byte) (nt >> 8), (byte) nt});
+    }
+
+    // a double takes two entries
+    int doubleConst(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        return entry("double " + bits, 2, wide(6, bits));
+    }
+
+    // so does a long
+    int longConst(long value) {
+        return entry("long " + value, 2, wide(5, value));
+    }
+
+    private static byte[] wide(int tag, long bits) {
+        byte[] bytes = new byte[9];
+        bytes[0] = (byte) tag;
+        for (int i = 0; i < 8; i++) {
+            bytes[8 - i] = (byte) (bits >> (i * 8));
+        }
+        return bytes;
+    }
+
+    @SneakyThrows
+    void method(int access, String name, String descriptor, Code code) {
+        byte[] body = code.bytes();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(access);
+        out.writeShort(utf8(name));
+        out.writeShort(utf8(descriptor));
+        // the Code attribute
+        out.writeShort(1);
+        out.writeShort(utf8("Code"));
+        out.writeInt(12 + body.length);
+        out.writeShort(code.maxStack);
+        out.writeShort(code.maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        // no exceptions or attributes
+        out.writeShort(0);
+        out.writeShort(0);
+        methods.add(bytes.toByteArray());
+    }
+
+    @SneakyThrows
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(poolSize);
+        out.write(poolBytes.toByteArray());
+        out.writeShort(ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(anInterface);
+        // no fields
+        out.writeShort(0);
+        out.writeShort(methods.size());
+        for (byte[] method : methods) {
+            out.write(method);
+        }
+        // no attributes
+        out.writeShort(0);
+        return bytes.toByteArray();
+    }
+
+    // the code of a method, the stack depth is
+    // kept by the one that emits it
+    static final class Code {
+
+        private byte[] code = new byte[128];
+        private int size = 0;
+
+        private int[] labels = new int[16];
+        private int labelCount = 0;
+        // { position of the opcode, label }
+        private final List<int[]> fixups = new ArrayList<>();
+
+        int stack = 0;
+        int maxStack = 0;
+        int maxLocals = 0;
+
+        void u1(int value) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+            }
+            code[size++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        // an opcode and the change it makes to the stack
+        void op(int opcode, int delta) {
+            u1(opcode);
+            stack(delta);
+        }
+
+        void stack(int delta) {
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        int label() {
+            if (labelCount == labels.length) {
+                labels = Arrays.copyOf(labels, labelCount * 2);
+            }
+            labels[labelCount] = -1;
+            return labelCount++;
+        }
+
+        void mark(int label) {
+            labels[label] = size;
+        }
+
+        void jump(int opcode, int label, int delta) {
+            fixups.add(new int[]{size, label});
+            op(opcode, delta);
+            u2(0);
+        }
+
+        private byte[] bytes() {
+            if (size > 0xFFFF) {
+                throw new IllegalStateException("Method is too large");
+            }
+            for (int[] fixup : fixups) {
+                int offset = labels[fixup[1]] - fixup[0];
+                if (offset != (short) offset) {
+                    throw new IllegalStateException("Jump is too far");
+                }
+                code[fixup[0] + 1] = (byte) (offset >> 8);
+                code[fixup[0] + 2] = (byte) offset;
+            }
+            return Arrays.copyOf(code, size);
+        }
+    }
+}
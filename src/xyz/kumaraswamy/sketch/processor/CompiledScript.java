@@ -0,0 +1,123 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import xyz.kumaraswamy.sketch.memory.Layout;
+import xyz.kumaraswamy.sketch.memory.Memory;
+
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// a program parsed, optimized and resolved once by
+// Sketch.compile(), that can be run many times, also at
+// the same time on other threads.
+//
+// the tree is shared by the runs and is not changed after
+// it is made, but for what the runs learn about it, the types
+// its operators see, the funs compiled by the Jit, the targets
+// of its calls, which is kept for the evaluator that learnt it
+// or is checked again before it is used. the types are hints
+// written without a lock, see Expression.Binary, a run that
+// sees the ones of another run only takes the slower path.
+// each run has its own Evaluator, memory and output.
+//
+// the inputs are globals that each run sets, the value
+// of a 'return' at the top is the result of the run
+public final class CompiledScript {
+
+    private final List<Expression> program;
+    private final Layout global;
+    // the first slots of the global layout
+    private final List<String> inputs;
+
+    // compiled for the vm, null when the tree is walked
+    private final Chunk chunk;
+    private final int jitThreshold;
+    private final int maxCallDepth;
+
+    public CompiledScript(List<Expression> program, Layout global, List<String> inputs,
+                          boolean bytecode, int jitThreshold, int maxCallDepth) {
+        this.program = List.copyOf(program);
+        this.global = global;
+        this.inputs = List.copyOf(inputs);
+        chunk = bytecode ? Compiler.script(program) : null;
+        this.jitThreshold = jitThreshold;
+        this.maxCallDepth = maxCallDepth;
+    }
+
+    public List<String> inputs() {
+        return inputs;
+    }
+
+    public Object run() {
+        return run(Collections.emptyMap());
+    }
+
+    public Object run(Map<String, ?> values) {
+        return run(values, System.out);
+    }
+
+    // an input that is not given is null
+    public Object run(Map<String, ?> values, OutputStream output) {
+        for (String name : values.keySet()) {
+            if (!inputs.contains(name)) {
+                throw new IllegalArgumentException("\"" + name + "\" is not an input of the script");
+            }
+        }
+        Memory memory = new Memory("", null);
+        memory.enter(global);
+        for (int slot = 0; slot < inputs.size(); slot++) {
+            String name = inputs.get(slot);
+            Object value = internal(name, values.get(name));
+            if (value instanceof Long integer) {
+                memory.defineLongAt(slot, name, integer);
+            } else if (value instanceof Double number) {
+                memory.defineDoubleAt(slot, name, number);
+            } else {
+                memory.defineAt(slot, name, value);
+            }
+        }
+        Evaluator eval = new Evaluator(memory);
+        eval.setOutput(output);
+        eval.setJitThreshold(jitThreshold);
+        Object result = null;
+        if (chunk != null) {
+            VM vm = new VM(eval);
+            vm.setMaxDepth(maxCallDepth);
+            eval.setVM(vm);
+            result = vm.run(chunk);
+        } else {
+            for (Expression expression : program) {
+                if (expression.accept(eval) == Evaluator.Signal.RETURN) {
+                    result = eval.returned;
+                    break;
+                }
+            }
+        }
+        return Evaluator.external(result);
+    }
+
+    // the java values made values of sketch, an array is
+    // copied so that the runs do not change the one given
+    private static Object internal(String name, Object value) {
+        if (value == null || value instanceof Long
+                || value instanceof Double || value instanceof Boolean) {
+            return value;
+        } else if (value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Float number) {
+            return number.doubleValue();
+        } else if (value instanceof CharSequence text) {
+            return text.toString();
+        } else if (value instanceof Object[] array) {
+            Object[] copy = new Object[array.length];
+            for (int i = 0; i < array.length; i++) {
+                copy[i] = internal(name, array[i]);
+            }
+            return copy;
+        }
+        throw new IllegalArgumentException("Cannot pass a "
+                + value.getClass().getName() + " to \"" + name + "\"");
+    }
+}
@@ -0,0 +1,615 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import xyz.kumaraswamy.sketch.lex.Token;
+import xyz.kumaraswamy.sketch.lex.TokenType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static xyz.kumaraswamy.sketch.processor.OpCode.*;
+
+// compiles resolved statements into a Chunk for the VM.
+//
+// a signal (break, return, ...) jumps to the landing of the
+// statement it is in, the landing does what the Evaluator
+// does with it there and jumps to the landing outside,
+// nodes that are not compiled are walked by the Evaluator
+final class Compiler implements Expression.Visitor<Object> {
+
+    private int[] code = new int[64];
+    private int size = 0;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> indexes = new IdentityHashMap<>();
+
+    // pc of the labels, -1 until marked
+    private int[] labels = new int[16];
+    private int labelCount = 0;
+    // code positions that hold a label
+    private final List<Integer> fixups = new ArrayList<>();
+
+    private int depth = 0;
+    private int maxDepth = 0;
+    private int loops = 0;
+
+    private Compiler() {
+    }
+
+    // a signal from a statement at the top is
+    // ignored and the next statement is run
+    static Chunk program(List<Expression> exprs) {
+        Compiler compiler = new Compiler();
+        for (Expression expr : exprs) {
+            int landing = compiler.label();
+            compiler.statement(expr, landing);
+            compiler.mark(landing);
+            compiler.emit(CLEAR);
+        }
+        compiler.emit(EXIT);
+        return compiler.chunk();
+    }
+
+    // the program of a CompiledScript, a return from a
+    // statement at the top ends it, with its value
+    static Chunk script(List<Expression> exprs) {
+        Compiler compiler = new Compiler();
+        int exit = compiler.label();
+        for (Expression expr : exprs) {
+            int landing = compiler.label();
+            compiler.statement(expr, landing);
+            compiler.mark(landing);
+            compiler.emit(CATCH_RETURN);
+            compiler.target(exit);
+            compiler.emit(CLEAR);
+        }
+        compiler.mark(exit);
+        compiler.emit(EXIT);
+        return compiler.chunk();
+    }
+
+    static Chunk fun(Expression.Fun fun) {
+        Compiler compiler = new Compiler();
+        int exit = compiler.label();
+        compiler.block(fun.expressions, exit);
+        compiler.mark(exit);
+        compiler.emit(EXIT);
+        return compiler.chunk();
+    }
+
+    private Chunk chunk() {
+        for (int position : fixups) {
+            code[position] = labels[code[position]];
+        }
+        return new Chunk(Arrays.copyOf(code, size),
+                constants.toArray(), maxDepth, loops);
+    }
+
+    private void emit(int value) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, size * 2);
+        }
+        code[size++] = value;
+    }
+
+    private void emit(int op, int operand) {
+        emit(op);
+        emit(operand);
+    }
+
+    private int constant(Object value) {
+        Integer index = indexes.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            indexes.put(value, index);
+        }
+        return index;
+    }
+
+    private int label() {
+        if (labelCount == labels.length) {
+            labels = Arrays.copyOf(labels, labelCount * 2);
+        }
+        labels[labelCount] = -1;
+        return labelCount++;
+    }
+
+    private void mark(int label) {
+        labels[label] = size;
+    }
+
+    // emits a reference to the label
+    private void target(int label) {
+        fixups.add(size);
+        emit(label);
+    }
+
+    private void push(int n) {
+        depth += n;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private void pop(int n) {
+        depth -= n;
+    }
+
+    private void expression(Expression expr) {
+        expr.accept(this);
+    }
+
+    // walked by the Evaluator
+    private Object eval(Expression expr) {
+        emit(EVAL, constant(expr));
+        push(1);
+        return null;
+    }
+
+    private void block(List<Expression> exprs, int landing) {
+        for (Expression expr : exprs) {
+            statement(expr, landing);
+        }
+    }
+
+    private void statement(Expression expr, int landing) {
+        if (expr instanceof Expression.If branch) {
+            ifStatement(branch, landing);
+        } else if (expr instanceof Expression.While loop) {
+            whileStatement(loop, landing);
+        } else if (expr instanceof Expression.For loop) {
+            forStatement(loop, landing);
+        } else if (expr instanceof Expression.Fun fun) {
+            emit(DEFINE_FUN, constant(fun));
+        } else if (expr instanceof Expression.Return ret) {
+            if (ret.expression instanceof Expression.FunCall call) {
+                call(call, landing);
+            } else {
+                expression(ret.expression);
+            }
+            emit(RETURN);
+            target(landing);
+            pop(1);
+        } else if (expr instanceof Expression.Break) {
+            raise(Evaluator.Signal.BREAK, landing);
+        } else if (expr instanceof Expression.Continue) {
+            raise(Evaluator.Signal.CONTINUE, landing);
+        } else if (expr instanceof Expression.Forward forward) {
+            expression(forward.expression);
+            emit(FORWARD);
+            target(landing);
+            pop(1);
+        } else if (expr instanceof Expression.FunCall call) {
+            // it may be in a tail position
+            call(call, landing);
+            emit(POP);
+            pop(1);
+        } else if (expr instanceof Expression.Each each) {
+            eachStatement(each, landing);
+        } else if (expr instanceof Expression.With) {
+            emit(EVAL_STATEMENT, constant(expr));
+            target(landing);
+        } else {
+            expression(expr);
+            emit(POP);
+            pop(1);
+        }
+    }
+
+    private void raise(Evaluator.Signal signal, int landing) {
+        emit(RAISE, signal.ordinal());
+        target(landing);
+    }
+
+    private void ifStatement(Expression.If expr, int landing) {
+        int orElse = label();
+        int inner = label();
+        int end = label();
+
+        expression(expr.expr);
+        emit(LOWER, constant("if"));
+        emit(constant(expr.layout));
+        emit(JUMP_FALSE);
+        target(orElse);
+        pop(1);
+
+        block(expr.body, inner);
+        emit(JUMP);
+        target(end);
+        mark(orElse);
+        if (expr.orElse != null) {
+            block(expr.orElse, inner);
+        }
+        emit(JUMP);
+        target(end);
+
+        mark(inner);
+        emit(UPPER);
+        emit(JUMP);
+        target(landing);
+
+        mark(end);
+        emit(UPPER);
+    }
+
+    private void whileStatement(Expression.While expr, int landing) {
+        int top = label();
+        int inner = label();
+        int end = label();
+
+        mark(top);
+        expression(expr.expr);
+        emit(JUMP_FALSE);
+        target(end);
+        pop(1);
+        block(expr.body, inner);
+        emit(JUMP);
+        target(top);
+
+        // any other signal stops the loop
+        mark(inner);
+        emit(CATCH_BREAK);
+        target(end);
+        emit(JUMP);
+        target(landing);
+        mark(end);
+    }
+
+    private void forStatement(Expression.For expr, int landing) {
+        Expression.Range range = expr.range;
+        int reg = loops++;
+        int top = label();
+        int inner = label();
+        int exit = label();
+        int loop = constant(expr);
+
+        expression(range.left);
+        expression(range.right);
+        emit(FOR_INIT, loop);
+        emit(reg);
+        pop(2);
+
+        mark(top);
+        emit(FOR_TEST, reg);
+        target(exit);
+        block(expr.block, inner);
+        emit(FOR_NEXT, loop);
+        emit(reg);
+        target(top);
+
+        mark(inner);
+        emit(FOR_SIGNAL, loop);
+        emit(reg);
+        target(top);
+        target(exit);
+        target(landing);
+
+        mark(exit);
+        emit(UPPER);
+    }
+
+    // a signal of the body does not stop the loop but
+    // for a break, the one of the last element is
+    // raised after it, as Evaluator.eachLoop() does
+    private void eachStatement(Expression.Each expr, int landing) {
+        int reg = loops++;
+        int top = label();
+        int inner = label();
+        int exit = label();
+        int loop = constant(expr);
+
+        emit(EACH_INIT, loop);
+        emit(reg);
+        push(1);
+
+        mark(top);
+        emit(EACH_NEXT, loop);
+        emit(reg);
+        target(exit);
+        block(expr.body, inner);
+        emit(JUMP);
+        target(top);
+
+        mark(inner);
+        emit(EACH_SIGNAL, reg);
+        target(top);
+        target(exit);
+
+        mark(exit);
+        emit(EACH_END, reg);
+        target(landing);
+        pop(1);
+    }
+
+    // the landing is where a tail call jumps, -1 if
+    // the call is not in a tail position
+    private void call(Expression.FunCall call, int landing) {
+        int skip = label();
+        emit(RESOLVE, constant(call));
+        target(skip);
+        push(1);
+        for (Expression arg : call.args) {
+            expression(arg);
+        }
+        emit(INVOKE, constant(call));
+        emit(call.args.size());
+        if (landing == -1) {
+            emit(-1);
+        } else {
+            target(landing);
+        }
+        pop(call.args.size());
+        mark(skip);
+    }
+
+    @Override
+    public Object visitLiteralExpr(Expression.Literal<?> expr) {
+        emit(expr.value instanceof Double ? NUM
+                : expr.value instanceof Long ? INT : CONST, constant(expr.value));
+        push(1);
+        return null;
+    }
+
+    @Override
+    public Object visitIdentifierExpr(Expression.Identifier expr) {
+        int name = constant(expr.token.lexeme);
+        if (expr.slot == -1) {
+            emit(LOAD_NAME, name);
+        } else {
+            emit(LOAD_SLOT, expr.depth);
+            emit(expr.slot);
+            emit(name);
+        }
+        push(1);
+        return null;
+    }
+
+    @Override
+    public Object visitPropertyAccessExpr(Expression.PropertyIdentifier expr) {
+        if (expr.name.type == TokenType.THIS) {
+            emit(LOAD_THIS, constant(expr.property.lexeme));
+        } else {
+            emit(CONST, constant(null));
+        }
+        push(1);
+        return null;
+    }
+
+    @Override
+    public Object visitValEpr(Expression.Val expr) {
+        Object target = expr.valId.get();
+        expression(expr.expression);
+        if (target instanceof Token) {
+            emit(STORE, constant(expr));
+        } else if (target instanceof Expression.ArrayAccess access) {
+            // the value, the array and then the index
+            int node = constant(access);
+            expression(access.array);
+            emit(ASSIGNABLE, node);
+            expression(access.access);
+            emit(STORE_INDEX, node);
+            pop(2);
+        } else if (((Expression.PropertyIdentifier) target).name.type == TokenType.THIS) {
+            emit(STORE_THIS, constant(expr));
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expression.Binary expr) {
+        expression(expr.left);
+        expression(expr.right);
+        int op = switch (expr.operator.type) {
+            case PLUS -> ADD;
+            case MINUS -> SUB;
+            case STAR -> MUL;
+            case SLASH -> DIV;
+            default -> MOD;
+        };
+        emit(op, constant(expr));
+        pop(1);
+        return null;
+    }
+
+    @Override
+    public Object visitLogicalExpr(Expression.Logical expr) {
+        expression(expr.left);
+        expression(expr.right);
+        int op = switch (expr.operator.type) {
+            case ABOVE -> ABOVE;
+            case BELOW -> BELOW;
+            case ABOVE_EQUAL -> ABOVE_EQUAL;
+            case BELOW_EQUAL -> BELOW_EQUAL;
+            default -> LOGICAL;
+        };
+        emit(op, constant(expr));
+        pop(1);
+        return null;
+    }
+
+    @Override
+    public Object visitLogicalAndExpr(Expression.LogicalAnd expr) {
+        shortCircuit(expr.left, expr.operator, expr.right, JUMP_FALSE_OR_POP);
+        return null;
+    }
+
+    @Override
+    public Object visitLogicalOrExpr(Expression.LogicalOr expr) {
+        shortCircuit(expr.left, expr.operator, expr.right, JUMP_TRUE_OR_POP);
+        return null;
+    }
+
+    private void shortCircuit(Expression left, Token operator,
+                              Expression right, int jump) {
+        int end = label();
+        int token = constant(operator);
+        expression(left);
+        emit(TEST, token);
+        emit(jump);
+        target(end);
+        pop(1);
+        expression(right);
+        emit(TEST, token);
+        mark(end);
+    }
+
+    @Override
+    public Object visitBitwiseExpr(Expression.Bitwise expr) {
+        expression(expr.left);
+        expression(expr.right);
+        emit(BITWISE, constant(expr));
+        pop(1);
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpr(Expression.Unary expr) {
+        expression(expr.expression);
+        switch (expr.operator.type) {
+            case MINUS -> emit(NEGATE, constant(expr.operator));
+            case EXCLAMATION -> emit(NOT);
+            default -> {
+                emit(POP);
+                emit(CONST, constant(null));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitTernary(Expression.Ternary expr) {
+        int or = label();
+        int end = label();
+        expression(expr.expr);
+        emit(JUMP_FALSE);
+        target(or);
+        pop(1);
+        expression(expr.then);
+        emit(JUMP);
+        target(end);
+        pop(1);
+        mark(or);
+        expression(expr.or);
+        mark(end);
+        return null;
+    }
+
+    @Override
+    public Object visitFunCallExpr(Expression.FunCall expr) {
+        call(expr, -1);
+        return null;
+    }
+
+    @Override
+    public Object visitInlinedExpr(Expression.Inlined expr) {
+        int skip = label();
+        emit(GUARD, constant(expr));
+        target(skip);
+        expression(expr.body);
+        mark(skip);
+        return null;
+    }
+
+    @Override
+    public Object visitInvariantExpr(Expression.Invariant expr) {
+        // the vm does not keep the values of
+        // invariants, they are evaluated again
+        expression(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Object visitFusedExpr(Expression.Fused expr) {
+        // the vm runs the nodes it was made of
+        expression(expr.original);
+        return null;
+    }
+
+    @Override
+    public Object visitWithExpr(Expression.With expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitBinaryUnaryExpr(Expression.BinaryUnary expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitArrayExpr(Expression.Array expr) {
+        for (Expression element : expr.exprs) {
+            expression(element);
+        }
+        emit(ARRAY, expr.exprs.size());
+        pop(expr.exprs.size());
+        push(1);
+        return null;
+    }
+
+    @Override
+    public Object visitArrayAccessExpr(Expression.ArrayAccess expr) {
+        int node = constant(expr);
+        expression(expr.array);
+        emit(INDEXABLE, node);
+        expression(expr.access);
+        emit(INDEX, node);
+        pop(1);
+        return null;
+    }
+
+    @Override
+    public Object visitSharedExpr(Expression.Shared expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitIfExpr(Expression.If expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitRangeExpr(Expression.Range expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitForExpr(Expression.For expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitWhileExpr(Expression.While expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitEachExpr(Expression.Each expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitFunExpr(Expression.Fun expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitReturnExpr(Expression.Return expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitBreakExpr(Expression.Break expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitContinueExpr(Expression.Continue expr) {
+        return eval(expr);
+    }
+
+    @Override
+    public Object visitForwardExpr(Expression.Forward expr) {
+        return eval(expr);
+    }
+}
@@ -3,36 +3,111 @@ package xyz.kumaraswamy.sketch.processor;
 import lombok.SneakyThrows;
 import xyz.kumaraswamy.sketch.Sketch;
 import xyz.kumaraswamy.sketch.lex.TokenType;
+import xyz.kumaraswamy.sketch.memory.Layout;
 import xyz.kumaraswamy.sketch.memory.Memory;
+import xyz.kumaraswamy.sketch.nativs.Len;
 import xyz.kumaraswamy.sketch.nativs.Native;
 import xyz.kumaraswamy.sketch.lex.Token;
 import xyz.kumaraswamy.sketch.nativs.sketch.Import;
+import xyz.kumaraswamy.sketch.nativs.sketch.Imported;
 
-import java.lang.reflect.Method;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class Evaluator implements Expression.Visitor<Object> {
 
     private final Import anImport = new Import(this);
 
+    public final Memo memo = new Memo(1024);
+
+    // set with the signals, one is on
+    // its way up at a time
+    Object returned;
+    double forwardBy;
+    TailCall nextCall;
+
+    // values of the invariants of the loops that are
+    // running, the last one of a loop is its own
+    private record Invariants(Expression loop, Object[] values) {
+    }
+
+    private final ArrayList<Invariants> invariants = new ArrayList<>();
+    // an invariant that is not evaluated yet
+    private static final Object UNSET = new Object();
+
+    // runs the fun bodies when set
+    private VM vm;
+    private final Jit jit = new Jit(this);
+
     public Memory headMemory;
     public Memory memory;
 
+    // where print() and printf() write, each evaluator
+    // has its own so sketches on other threads do not mix
+    private OutputStream output = System.out;
+
+    // one instance of each native per evaluator
+    private final HashMap<String, Native> natives = new HashMap<>();
+    // names of all the functions defined by the script, a
+    // call site bound to a native is invalidated through
+    // the epoch when one of them is defined
+    private final HashSet<String> functions = new HashSet<>();
+    int epoch = 0;
+    // functions defined inside other functions, their
+    // lookup depends on the caller's memory
+    private boolean nested = false;
+
+    // target of a call site, bound on its first call,
+    // the function is cached when it can only be in
+    // the head memory
+    record Binding(Evaluator owner, int epoch, Native aNative, Object function) {
+    }
+
     public Evaluator(Memory memory) {
         headMemory = memory;
         this.memory = memory;
     }
 
+    // fun bodies are run by the vm instead
+    // of being walked, null to walk them
+    public void setVM(VM vm) {
+        this.vm = vm;
+    }
+
+    // calls a fun needs before it is compiled
+    // to JVM bytecode, 0 turns it off
+    public void setJitThreshold(int threshold) {
+        jit.setThreshold(threshold);
+    }
+
+    public int jitThreshold() {
+        return jit.threshold();
+    }
+
+    public void setOutput(OutputStream output) {
+        this.output = output;
+    }
+
+    public OutputStream output() {
+        return output;
+    }
+
     public Object evaluate(Expression expr) {
         return expr.accept(this);
     }
 
-    public void lowerMemory(String name) {
+    public void lowerMemory(String name, Layout layout) {
         // use memory.next instead of creating
         // new objects, this will make the language
         // faster, memory.next is a cleared memory (its like new)
         memory = memory.next != null ? memory.next
                 : new Memory(name, memory);
+        memory.enter(layout);
     }
 
     public void upperMemory() {
@@ -50,28 +125,39 @@ public class Evaluator implements Expression.Visitor<Object> {
 
     @Override
     public Object visitArrayAccessExpr(Expression.ArrayAccess expr) {
+        return element(evaluate(expr.array), expr);
+    }
+
+    private Object element(Object val, Expression.ArrayAccess expr) {
         Object valArray = expr.array;
-        Object val = evaluate(expr.array);
 
-        if (val instanceof Object[] array) {
+        if (val instanceof NumberArray array) {
+            return array.get(getArrayIndex(expr));
+        } else if (val instanceof Object[] array) {
             return array[getArrayIndex(expr)];
-        } else if (val instanceof String string) {
+        } else if (val instanceof CharSequence string) {
             return string.charAt(getArrayIndex(expr));
         }
         throw new RuntimeError("\"" + valArray + "\"" + " is not an valArray");
     }
 
     private int getArrayIndex(Expression.ArrayAccess expr) {
-        Object nNumber = evaluate(expr.access);
-        if (nNumber instanceof Double n) {
-            return n.intValue();
+        try {
+            return Integers.index(evaluateLong(expr.access));
+        } catch (NotNumber e) {
+            if (e.value instanceof Double n) {
+                return n.intValue();
+            }
+            throw new RuntimeError("Needs a number for array access");
         }
-        throw new RuntimeError("Needs a number for array access");
     }
 
     @Override
     public Object visitIdentifierExpr(Expression.Identifier expr) {
-        return memory.getVal(expr.token.lexeme);
+        if (expr.slot == -1) {
+            return memory.getVal(expr.token.lexeme);
+        }
+        return memory.getAt(expr.depth, expr.slot, expr.token.lexeme);
     }
 
     @Override
@@ -88,65 +174,344 @@ public class Evaluator implements Expression.Visitor<Object> {
         return null;
     }
 
+    // thrown by evaluateDouble() when a value is not a number,
+    // carries the value to go on with the generic path
+    static class NotNumber extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final Object value;
+
+        NotNumber(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    private static double unbox(Object value) {
+        if (value instanceof Double number) {
+            return number;
+        }
+        throw new NotNumber(value);
+    }
+
+    private static long unboxLong(Object value) {
+        if (value instanceof Long number) {
+            return number;
+        }
+        throw new NotNumber(value);
+    }
+
+    // evaluates numeric subtrees without boxing the
+    // results, values are boxed only when they escape
+    // to the generic path
+    public double evaluateDouble(Expression expr) {
+        if (expr instanceof Expression.Literal<?> literal) {
+            return unbox(literal.value);
+        } else if (expr instanceof Expression.Identifier identifier) {
+            if (identifier.slot != -1) {
+                Memory frame = memory.at(identifier.depth);
+                if (frame.hasDouble(identifier.slot)) {
+                    return frame.getDouble(identifier.slot);
+                }
+            }
+            return unbox(visitIdentifierExpr(identifier));
+        } else if (expr instanceof Expression.Binary binary) {
+            return binaryDouble(binary);
+        } else if (expr instanceof Expression.BinaryUnary unary) {
+            return binaryUnaryDouble(unary);
+        } else if (expr instanceof Expression.ArrayAccess access) {
+            Object array = evaluate(access.array);
+            if (array instanceof NumberArray numbers && numbers.numeric()) {
+                int index = getArrayIndex(access);
+                double value = numbers.doubleAt(index);
+                if (numbers.integer(index) || numbers.unset(index)) {
+                    throw new NotNumber(numbers.get(index));
+                }
+                return value;
+            }
+            return unbox(element(array, access));
+        } else if (expr instanceof Expression.Unary unary
+                && unary.operator.type == TokenType.MINUS) {
+            try {
+                return -evaluateDouble(unary.expression);
+            } catch (NotNumber e) {
+                return unbox(negative(unary.operator, e.value));
+            }
+        }
+        return unbox(evaluate(expr));
+    }
+
+    // like evaluateDouble(), for the integers
+    long evaluateLong(Expression expr) {
+        if (expr instanceof Expression.Literal<?> literal) {
+            return unboxLong(literal.value);
+        } else if (expr instanceof Expression.Identifier identifier) {
+            if (identifier.slot != -1) {
+                Memory frame = memory.at(identifier.depth);
+                if (frame.hasLong(identifier.slot)) {
+                    return frame.getLong(identifier.slot);
+                }
+            }
+            return unboxLong(visitIdentifierExpr(identifier));
+        } else if (expr instanceof Expression.Binary binary) {
+            return binaryLong(binary);
+        } else if (expr instanceof Expression.BinaryUnary unary) {
+            return binaryUnaryLong(unary);
+        } else if (expr instanceof Expression.ArrayAccess access) {
+            Object array = evaluate(access.array);
+            if (array instanceof NumberArray numbers && numbers.numeric()) {
+                int index = getArrayIndex(access);
+                long value = numbers.longAt(index);
+                if (!numbers.integer(index)) {
+                    throw new NotNumber(numbers.get(index));
+                }
+                return value;
+            }
+            return unboxLong(element(array, access));
+        }
+        return unboxLong(evaluate(expr));
+    }
+
+    private double binaryDouble(Expression.Binary expr) {
+        if (!expr.specialization.doubles()) {
+            return unbox(visitBinaryExpr(expr));
+        }
+        double left, right;
+        // the left when it is a long, a long with a
+        // double is made a double, two longs are not
+        Long integer = longOperand(expr.left);
+        if (integer != null) {
+            left = integer;
+        } else {
+            try {
+                left = evaluateDouble(expr.left);
+            } catch (NotNumber e) {
+                if (!(e.value instanceof Long n)) {
+                    return deoptimize(expr, e.value, evaluate(expr.right));
+                }
+                left = integer = n;
+            }
+        }
+        Long other = longOperand(expr.right);
+        if (other != null && integer == null) {
+            right = other;
+        } else {
+            try {
+                right = evaluateDouble(expr.right);
+            } catch (NotNumber e) {
+                if (!(e.value instanceof Long n) || integer != null) {
+                    return deoptimize(expr, integer != null ? integer : left, e.value);
+                }
+                right = n;
+            }
+        }
+        return switch (expr.operator.type) {
+            case PLUS -> left + right;
+            case MINUS -> left - right;
+            case STAR -> left * right;
+            case SLASH -> left / right;
+            case PERCENTAGE -> left % right;
+            default -> unbox(binary(expr, left, right));
+        };
+    }
+
+    private static double deoptimize(Expression.Binary expr, Object left, Object right) {
+        expr.specialization = Specialization.GENERIC;
+        return unbox(binary(expr, left, right));
+    }
+
+    private long binaryLong(Expression.Binary expr) {
+        if (!expr.specialization.longs()) {
+            return unboxLong(visitBinaryExpr(expr));
+        }
+        long left, right;
+        try {
+            left = evaluateLong(expr.left);
+        } catch (NotNumber e) {
+            return deoptimizeLong(expr, e.value, evaluate(expr.right));
+        }
+        try {
+            right = evaluateLong(expr.right);
+        } catch (NotNumber e) {
+            return deoptimizeLong(expr, left, e.value);
+        }
+        // an overflow leaves with the double
+        return Integers.arithmetic(expr.operator.type, left, right);
+    }
+
+    private static long deoptimizeLong(Expression.Binary expr, Object left, Object right) {
+        expr.specialization = Specialization.GENERIC;
+        return unboxLong(binary(expr, left, right));
+    }
+
+    private static boolean numeric(Expression expr) {
+        if (expr instanceof Expression.Binary binary) {
+            return binary.specialization != Specialization.GENERIC
+                    && binary.specialization != Specialization.STRING_CONCAT;
+        }
+        return expr instanceof Expression.BinaryUnary
+                || expr instanceof Expression.Unary unary
+                && unary.operator.type == TokenType.MINUS;
+    }
+
+    // a numeric expression that is kept in a long
+    private static boolean integral(Expression expr) {
+        return expr instanceof Expression.Binary binary
+                && binary.specialization.longs();
+    }
+
     @Override
     public Object visitBinaryExpr(Expression.Binary expr) {
+        if (expr.specialization.doubles()) {
+            try {
+                return binaryDouble(expr);
+            } catch (NotNumber e) {
+                return e.value;
+            }
+        } else if (expr.specialization.longs()) {
+            try {
+                return binaryLong(expr);
+            } catch (NotNumber e) {
+                return e.value;
+            }
+        }
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
-            case PLUS -> {
-                if (left instanceof Double
-                        && right instanceof Double) {
-                    return (double) left + (double) right;
-                }
-                if (left instanceof String
-                        || right instanceof String) {
-                    return String.valueOf(left) + right;
+        switch (expr.specialization) {
+            case STRING_CONCAT -> {
+                if (left instanceof CharSequence || right instanceof CharSequence) {
+                    return Rope.concat(left, right);
                 }
-                cannotApplyOperator(expr.operator);
             }
-            case MINUS -> {
-                if (left instanceof Double
-                        && right instanceof Double) {
-                    return (double) left - (double) right;
-                }
-                cannotApplyOperator(expr.operator);
+            case UNINITIALIZED -> {
+                observe(expr, left, right);
+                return binary(expr, left, right);
             }
-            case STAR -> {
-                if (left instanceof Double
-                        && right instanceof Double) {
-                    return (double) left * (double) right;
+            default -> {
+                return binary(expr, left, right);
+            }
+        }
+        // operand types changed
+        expr.specialization = Specialization.GENERIC;
+        return binary(expr, left, right);
+    }
+
+    private static void observe(Expression.Binary expr, Object left, Object right) {
+        Specialization seen = Specialization.of(expr.operator.type, left, right);
+        if (expr.observed != null && expr.observed != seen) {
+            expr.specialization = Specialization.GENERIC;
+        } else if (++expr.executions == Specialization.THRESHOLD) {
+            expr.specialization = seen;
+        }
+        expr.observed = seen;
+    }
+
+    static Object binary(Expression.Binary expr, Object left, Object right) {
+        TokenType type = expr.operator.type;
+        if (left instanceof Long a && right instanceof Long b) {
+            switch (type) {
+                case PLUS, MINUS, STAR, SLASH, PERCENTAGE -> {
+                    return Integers.box(type, a, b);
                 }
-                cannotApplyOperator(expr.operator);
             }
-            case SLASH -> {
-                if (left instanceof Double
-                        && right instanceof Double) {
-                    return (double) left / (double) right;
+        } else if (left instanceof Number a && right instanceof Number b) {
+            double x = a.doubleValue();
+            double y = b.doubleValue();
+            switch (type) {
+                case PLUS -> {
+                    return x + y;
+                }
+                case MINUS -> {
+                    return x - y;
+                }
+                case STAR -> {
+                    return x * y;
+                }
+                case SLASH -> {
+                    return x / y;
+                }
+                case PERCENTAGE -> {
+                    return x % y;
                 }
-                cannotApplyOperator(expr.operator);
             }
-            case PERCENTAGE -> {
-                if (left instanceof Double
-                        && right instanceof Double) {
-                    return (double) left % (double) right;
+        }
+        switch (type) {
+            case PLUS -> {
+                if (left instanceof CharSequence
+                        || right instanceof CharSequence) {
+                    return Rope.concat(left, right);
                 }
                 cannotApplyOperator(expr.operator);
             }
+            case MINUS, STAR, SLASH, PERCENTAGE -> cannotApplyOperator(expr.operator);
         }
         return null;
     }
 
+    private double binaryUnaryDouble(Expression.BinaryUnary expr) {
+        if (expr.slot != -1) {
+            Memory frame = memory.at(expr.depth);
+            if (frame.hasDouble(expr.slot)) {
+                double x = frame.getDouble(expr.slot);
+                double n = expr.operator.type == TokenType.INCREMENT ? x + 1 : x - 1;
+                frame.setDouble(expr.slot, n);
+                return expr.left ? n : x;
+            }
+        }
+        return unbox(visitBinaryUnaryExpr(expr));
+    }
+
+    private long binaryUnaryLong(Expression.BinaryUnary expr) {
+        if (expr.slot != -1) {
+            Memory frame = memory.at(expr.depth);
+            if (frame.hasLong(expr.slot)) {
+                long x = frame.getLong(expr.slot);
+                if (x == (expr.operator.type == TokenType.INCREMENT
+                        ? Long.MAX_VALUE : Long.MIN_VALUE)) {
+                    // made a double
+                    return unboxLong(visitBinaryUnaryExpr(expr));
+                }
+                long n = expr.operator.type == TokenType.INCREMENT ? x + 1 : x - 1;
+                frame.setLong(expr.slot, n);
+                return expr.left ? n : x;
+            }
+        }
+        return unboxLong(visitBinaryUnaryExpr(expr));
+    }
+
     @Override
     public Object visitBinaryUnaryExpr(Expression.BinaryUnary expr) {
+        if (expr.slot != -1 && memory.at(expr.depth).hasDouble(expr.slot)) {
+            return binaryUnaryDouble(expr);
+        }
         String valId = expr.valId.lexeme;
-        Object val = memory.getVal(valId);
+        Object val = expr.slot == -1
+                ? memory.getVal(valId)
+                : memory.getAt(expr.depth, expr.slot, valId);
+        TokenType type = expr.operator.type;
+        if (val instanceof Long x && (type == TokenType.INCREMENT
+                || type == TokenType.DECREMENT)) {
+            Object n = Integers.box(type == TokenType.INCREMENT
+                    ? TokenType.PLUS : TokenType.MINUS, x, 1);
+            if (expr.slot == -1) {
+                memory.push(valId, n);
+            } else if (n instanceof Long integer) {
+                memory.setLongAt(expr.depth, expr.slot, valId, integer);
+            } else {
+                memory.setAt(expr.depth, expr.slot, valId, n);
+            }
+            return expr.left ? n : x;
+        }
         if (val instanceof Double x) {
-            switch (expr.operator.type) {
+            switch (type) {
                 case INCREMENT, DECREMENT -> {
-                    int n = expr.operator.type ==
-                            TokenType.INCREMENT ? 1 : -1;
-                    memory.push(valId, x + n);
+                    int n = type == TokenType.INCREMENT ? 1 : -1;
+                    if (expr.slot == -1) {
+                        memory.push(valId, x + n);
+                    } else {
+                        memory.setDoubleAt(expr.depth, expr.slot, valId, x + n);
+                    }
                     return expr.left ? x + n : x;
                 }
             }
@@ -161,63 +526,222 @@ public class Evaluator implements Expression.Visitor<Object> {
         Object value = evaluate(expr.expression);
 
         if (type == TokenType.MINUS) {
-            if (value instanceof Double) {
-                return -((double) value);
-            }
-            cannotApplyOperator(expr.operator);
+            return negative(expr.operator, value);
         } else if (type == TokenType.EXCLAMATION) {
             return !truthy(value);
         }
         return null;
     }
 
+    static Object negative(Token operator, Object value) {
+        if (value instanceof Double number) {
+            return -number;
+        } else if (value instanceof Long number) {
+            try {
+                return Integers.negate(number);
+            } catch (NotNumber e) {
+                return e.value;
+            }
+        }
+        cannotApplyOperator(operator);
+        return null;
+    }
+
     @Override
     public Object visitLogicalExpr(Expression.Logical expr) {
-        TokenType type = expr.operator.type;
-
+        if (expr.specialization.doubles()) {
+            return compareDouble(expr);
+        } else if (expr.specialization.longs()) {
+            return compareLong(expr);
+        }
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (type) {
+        if (expr.specialization == Specialization.UNINITIALIZED) {
+            observe(expr, left, right);
+        }
+        return logical(expr, left, right);
+    }
+
+    @Override
+    public Object visitLogicalAndExpr(Expression.LogicalAnd expr) {
+        return condition(expr.left, expr.operator)
+                && condition(expr.right, expr.operator);
+    }
+
+    @Override
+    public Object visitLogicalOrExpr(Expression.LogicalOr expr) {
+        return condition(expr.left, expr.operator)
+                || condition(expr.right, expr.operator);
+    }
+
+    private boolean condition(Expression expr, Token operator) {
+        if (evaluate(expr) instanceof Boolean bool) {
+            return bool;
+        }
+        cannotApplyOperator(operator);
+        return false;
+    }
+
+    @Override
+    public Object visitBitwiseExpr(Expression.Bitwise expr) {
+        return bitwise(expr, evaluate(expr.left), evaluate(expr.right));
+    }
+
+    static Object bitwise(Expression.Bitwise expr, Object left, Object right) {
+        boolean and = expr.operator.type == TokenType.BITWISE_AND;
+        if (left instanceof Boolean a && right instanceof Boolean b) {
+            return and ? a & b : a | b;
+        }
+        if (left instanceof Long a && right instanceof Long b) {
+            return and ? a & b : a | b;
+        }
+        if (left instanceof Number a && right instanceof Number b
+                && a.doubleValue() == a.longValue() && b.doubleValue() == b.longValue()) {
+            // integral doubles stay doubles
+            long x = a.longValue();
+            long y = b.longValue();
+            return (double) (and ? x & y : x | y);
+        }
+        cannotApplyOperator(expr.operator, "Operation of non integers.");
+        return null;
+    }
+
+    private Object compareDouble(Expression.Logical expr) {
+        double left, right;
+        // as in binaryDouble()
+        Long integer = longOperand(expr.left);
+        if (integer != null) {
+            left = integer;
+        } else {
+            try {
+                left = evaluateDouble(expr.left);
+            } catch (NotNumber e) {
+                if (!(e.value instanceof Long n)) {
+                    expr.specialization = Specialization.GENERIC;
+                    return logical(expr, e.value, evaluate(expr.right));
+                }
+                left = integer = n;
+            }
+        }
+        Long other = longOperand(expr.right);
+        if (other != null && integer == null) {
+            right = other;
+        } else {
+            try {
+                right = evaluateDouble(expr.right);
+            } catch (NotNumber e) {
+                if (!(e.value instanceof Long n) || integer != null) {
+                    expr.specialization = Specialization.GENERIC;
+                    return logical(expr, integer != null ? integer : left, e.value);
+                }
+                right = n;
+            }
+        }
+        return switch (expr.operator.type) {
+            case ABOVE -> left > right;
+            case BELOW -> left < right;
+            case ABOVE_EQUAL -> left >= right;
+            case BELOW_EQUAL -> left <= right;
+            default -> logical(expr, left, right);
+        };
+    }
+
+    private Object compareLong(Expression.Logical expr) {
+        long left, right;
+        try {
+            left = evaluateLong(expr.left);
+        } catch (NotNumber e) {
+            expr.specialization = Specialization.GENERIC;
+            return logical(expr, e.value, evaluate(expr.right));
+        }
+        try {
+            right = evaluateLong(expr.right);
+        } catch (NotNumber e) {
+            expr.specialization = Specialization.GENERIC;
+            return logical(expr, left, e.value);
+        }
+        return switch (expr.operator.type) {
+            case ABOVE -> left > right;
+            case BELOW -> left < right;
+            case ABOVE_EQUAL -> left >= right;
+            case BELOW_EQUAL -> left <= right;
+            default -> logical(expr, left, right);
+        };
+    }
+
+    // a long literal or a long in the memory, read
+    // without going through a NotNumber
+    private Long longOperand(Expression expr) {
+        if (expr instanceof Expression.Literal<?> literal) {
+            return literal.value instanceof Long n ? n : null;
+        } else if (expr instanceof Expression.Identifier identifier
+                && identifier.slot != -1) {
+            Memory frame = memory.at(identifier.depth);
+            if (frame.hasLong(identifier.slot)) {
+                return frame.getLong(identifier.slot);
+            }
+        }
+        return null;
+    }
+
+    private static void observe(Expression.Logical expr, Object left, Object right) {
+        Specialization seen = Specialization.of(expr.operator.type, left, right);
+        if (expr.observed != null && expr.observed != seen) {
+            expr.specialization = Specialization.GENERIC;
+        } else if (++expr.executions == Specialization.THRESHOLD) {
+            expr.specialization = seen;
+        }
+        expr.observed = seen;
+    }
+
+    static Object logical(Expression.Logical expr, Object left, Object right) {
+        switch (expr.operator.type) {
             case EQUAL_EQUAL:
                 return equal(left, right);
             case NOT_EQUAL:
                 return !equal(left, right);
-            case LOGICAL_AND:
-                if (left instanceof Boolean && right instanceof Boolean) {
-                    return (boolean) left && (boolean) right;
-                }
-                cannotApplyOperator(expr.operator);
-                break;
             case ABOVE:
                 // > operator
-                if (left instanceof Double first
-                        && right instanceof Double second) {
+                if (left instanceof Long first
+                        && right instanceof Long second) {
                     return first > second;
+                } else if (left instanceof Number first
+                        && right instanceof Number second) {
+                    return first.doubleValue() > second.doubleValue();
                 }
                 cannotApplyOperator(expr.operator, "Operation of non numbers.");
                 break;
             case BELOW:
                 // < operator
-                if (left instanceof Double first
-                        && right instanceof Double second) {
+                if (left instanceof Long first
+                        && right instanceof Long second) {
                     return first < second;
+                } else if (left instanceof Number first
+                        && right instanceof Number second) {
+                    return first.doubleValue() < second.doubleValue();
                 }
                 cannotApplyOperator(expr.operator, "Operation of non numbers.");
                 break;
             case ABOVE_EQUAL:
                 // < operator
-                if (left instanceof Double first
-                        && right instanceof Double second) {
+                if (left instanceof Long first
+                        && right instanceof Long second) {
                     return first >= second;
+                } else if (left instanceof Number first
+                        && right instanceof Number second) {
+                    return first.doubleValue() >= second.doubleValue();
                 }
                 cannotApplyOperator(expr.operator, "Operation of non numbers.");
                 break;
             case BELOW_EQUAL:
                 // < operator
-                if (left instanceof Double first
-                        && right instanceof Double second) {
+                if (left instanceof Long first
+                        && right instanceof Long second) {
                     return first <= second;
+                } else if (left instanceof Number first
+                        && right instanceof Number second) {
+                    return first.doubleValue() <= second.doubleValue();
                 }
                 cannotApplyOperator(expr.operator, "Operation of non numbers.");
                 break;
@@ -231,12 +755,16 @@ public class Evaluator implements Expression.Visitor<Object> {
         int size = list.size();
 
         Object[] vals = new Object[size];
+        // numbers are kept unboxed
+        boolean numbers = true;
 
         for (int i = 0; i < size; i++) {
             Expression expression = list.get(i);
-            vals[i] = evaluate(expression);
+            Object val = evaluate(expression);
+            numbers &= val instanceof Double || val instanceof Long;
+            vals[i] = val;
         }
-        return vals;
+        return numbers ? NumberArray.of(vals) : vals;
     }
 
     @Override
@@ -247,6 +775,16 @@ public class Evaluator implements Expression.Visitor<Object> {
 
     @Override
     public Object visitValEpr(Expression.Val expr) {
+        if (expr.slot != -1 && numeric(expr.expression)) {
+            try {
+                if (integral(expr.expression)) {
+                    return assignLong(expr);
+                }
+                return assignDouble(expr);
+            } catch (NotNumber e) {
+                return e.value;
+            }
+        }
         Object val = evaluate(expr.expression);
 
         Expression.Val.ValId vId = expr.valId;
@@ -272,21 +810,59 @@ public class Evaluator implements Expression.Visitor<Object> {
     private void setArrayElement(Object val, Expression.ArrayAccess access) {
         Object aVal = evaluate(access.array);
 
-        if (aVal instanceof Object[] array) {
-            Object nPosition = evaluate(access.access);
-            if (nPosition instanceof Double nPos) {
-                int index = nPos.intValue();
-                array[index] = val;
-                return;
-            }
-            throw new RuntimeError("Needs a number for array access");
+        if (aVal instanceof NumberArray array) {
+            array.set(getArrayIndex(access), val);
+            return;
+        } else if (aVal instanceof Object[] array) {
+            array[getArrayIndex(access)] = val;
+            return;
         }
         throw new RuntimeError("\"" + aVal + "\"" + " is not an array");
     }
 
-    private void assignVal(Expression.Val expr, Object val, Token valId) {
-        String name = valId.lexeme;
+    private double assignDouble(Expression.Val expr) {
+        Token token = (Token) expr.valId.get();
+        double value;
+        try {
+            value = evaluateDouble(expr.expression);
+        } catch (NotNumber e) {
+            assignVal(expr, e.value, token);
+            throw e;
+        }
+        if (expr.assignment) {
+            memory.setDoubleAt(expr.depth, expr.slot, token.lexeme, value);
+        } else {
+            memory.defineDoubleAt(expr.slot, token.lexeme, value);
+        }
+        return value;
+    }
+
+    private long assignLong(Expression.Val expr) {
+        Token token = (Token) expr.valId.get();
+        long value;
+        try {
+            value = evaluateLong(expr.expression);
+        } catch (NotNumber e) {
+            assignVal(expr, e.value, token);
+            throw e;
+        }
         if (expr.assignment) {
+            memory.setLongAt(expr.depth, expr.slot, token.lexeme, value);
+        } else {
+            memory.defineLongAt(expr.slot, token.lexeme, value);
+        }
+        return value;
+    }
+
+    void assignVal(Expression.Val expr, Object val, Token valId) {
+        String name = valId.lexeme;
+        if (expr.slot != -1) {
+            if (expr.assignment) {
+                memory.setAt(expr.depth, expr.slot, name, val);
+            } else {
+                memory.defineAt(expr.slot, name, val);
+            }
+        } else if (expr.assignment) {
             memory.push(name, val);
         } else {
             memory.defineVal(name, val);
@@ -303,7 +879,7 @@ public class Evaluator implements Expression.Visitor<Object> {
     @Override
     public Object visitIfExpr(Expression.If expr) {
         Object cond = evaluate(expr.expr);
-        lowerMemory("if");
+        lowerMemory("if", expr.layout);
         Object result = null;
         if (truthy(cond)) {
             result = evaluate(expr.body);
@@ -314,11 +890,24 @@ public class Evaluator implements Expression.Visitor<Object> {
         return result;
     }
 
-    private Interrupt evaluate(List<Expression> exprs) {
+    private Signal evaluate(List<Expression> exprs) {
         for (Expression expr : exprs) {
+            if (expr instanceof Expression.Val val
+                    && val.slot != -1 && numeric(val.expression)) {
+                // a statement, the value is not needed
+                try {
+                    if (integral(val.expression)) {
+                        assignLong(val);
+                    } else {
+                        assignDouble(val);
+                    }
+                } catch (NotNumber ignored) {
+                }
+                continue;
+            }
             Object result = evaluate(expr);
-            if (result instanceof Interrupt interrupt) {
-                return interrupt;
+            if (result instanceof Signal signal) {
+                return signal;
             }
         }
         return null;
@@ -326,16 +915,47 @@ public class Evaluator implements Expression.Visitor<Object> {
 
     @Override
     public Object visitForExpr(Expression.For expr) {
+        if (expr.invariants == 0) {
+            return forLoop(expr);
+        }
+        enterLoop(expr, expr.invariants);
+        try {
+            return forLoop(expr);
+        } finally {
+            exitLoop();
+        }
+    }
+
+    private Object forLoop(Expression.For expr) {
         String valId = expr.valId.lexeme;
 
-        List<Expression> loop = expr.block;
-        Object[] range = (Object[]) evaluate(expr.range);
+        Expression.Range range = expr.range;
+        Object left = evaluate(range.left);
+        Object right = evaluate(range.right);
+        if (!((left instanceof Double || left instanceof Long)
+                && (right instanceof Double || right instanceof Long))) {
+            cannotApplyOperator(range.type);
+        }
 
-        TokenType type = (TokenType) range[0];
-        boolean reverse = type == TokenType.RIGHT_LEFT;
+        boolean reverse = range.type.type == TokenType.RIGHT_LEFT;
+        int slot = expr.slot;
+        Memory outer = memory;
+
+        if (left instanceof Long && right instanceof Long) {
+            // counted in longs, the looper stays an integer
+            long from = (long) (reverse ? right : left);
+            long to = (long) (reverse ? left : right);
+            outer.defineLongAt(slot, valId, from);
+            lowerMemory("for loop", expr.layout);
+            Object result = expr.counted
+                    ? countedLong(expr, outer, from, to, reverse)
+                    : longLoop(expr, outer, from, to, reverse);
+            upperMemory();
+            return result;
+        }
 
-        double from = (double) range[1];
-        double to = (double) range[2];
+        double from = ((Number) left).doubleValue();
+        double to = ((Number) right).doubleValue();
 
         if (reverse) {
             double f = from;
@@ -344,10 +964,18 @@ public class Evaluator implements Expression.Visitor<Object> {
         }
 
         // for ->
-        memory.defineVal(valId, from);
+        // the looper stays unboxed in the outer memory
+        outer.defineDoubleAt(slot, valId, from);
 
-        lowerMemory("for loop");
+        lowerMemory("for loop", expr.layout);
 
+        if (expr.counted) {
+            Object result = counted(expr, outer, from, to, reverse);
+            upperMemory();
+            return result;
+        }
+
+        List<Expression> loop = expr.block;
         Object result = null;
         double x;
         loop:
@@ -355,36 +983,40 @@ public class Evaluator implements Expression.Visitor<Object> {
                 x = reverse ? from - 1 : from;
                 reverse ? x >= to : x <= to;
         ) {
-            Interrupt interrupt = evaluate(loop);
-            Object val = memory.getVal(valId);
-            if (val instanceof Double parallel) {
-                x = parallel;
-                memory.push(valId, parallel = (double) val + (reverse ? -1 : 1));
+            Signal signal = evaluate(loop);
+            double parallel;
+            if (outer.hasDouble(slot)) {
+                parallel = outer.getDouble(slot);
+            } else if (outer.getAt(0, slot, valId) instanceof Number val
+                    && (val instanceof Double || val instanceof Long)) {
+                parallel = val.doubleValue();
             } else {
                 // todo move this
                 //  error and detection to somewhere else
                 throw new RuntimeError("variable [" + valId + "] modified to a non number!");
             }
-            if (interrupt != null) {
+            x = parallel;
+            outer.setDouble(slot, parallel += (reverse ? -1 : 1));
+            if (signal != null) {
                 boolean handled = true;
-                switch (interrupt.type()) {
-                    case "break":
+                switch (signal) {
+                    case BREAK:
                         break loop;
-                    case "continue":
+                    case CONTINUE:
                         // the, evaluate(List) function has
                         // already stopped execution
                         break;
-                    case "forward":
-                        double by = (double) interrupt.value();
+                    case FORWARD:
+                        double by = forwardBy;
                         if (reverse) by = -by;
                         x += by;
-                        memory.push(valId, parallel + by);
+                        outer.setDouble(slot, parallel + by);
                         break;
                     default:
                         handled = false;
                 }
                 if (!handled) {
-                    result = interrupt;
+                    result = signal;
                     break;
                 }
             }
@@ -399,11 +1031,104 @@ public class Evaluator implements Expression.Visitor<Object> {
         return result;
     }
 
+    // the loop above on longs, the memory is lowered
+    private Object longLoop(Expression.For expr, Memory outer,
+                            long from, long to, boolean reverse) {
+        String valId = expr.valId.lexeme;
+        int slot = expr.slot;
+        List<Expression> loop = expr.block;
+        long step = reverse ? -1 : 1;
+        Object result = null;
+        loop:
+        for (long x = reverse ? from - 1 : from; reverse ? x >= to : x <= to; ) {
+            Signal signal = evaluate(loop);
+            long parallel;
+            if (outer.hasLong(slot)) {
+                parallel = outer.getLong(slot);
+            } else if (outer.getAt(0, slot, valId) instanceof Long val) {
+                parallel = val;
+            } else {
+                throw new RuntimeError("variable [" + valId + "] modified to a non integer!");
+            }
+            x = parallel;
+            outer.setLong(slot, parallel += step);
+            if (signal == Signal.BREAK) {
+                break;
+            } else if (signal == Signal.FORWARD) {
+                long by = (long) (reverse ? -forwardBy : forwardBy);
+                x += by;
+                outer.setLong(slot, parallel + by);
+            } else if (signal != null && signal != Signal.CONTINUE) {
+                result = signal;
+                break loop;
+            }
+            memory.delete();
+            x += step;
+        }
+        return result;
+    }
+
+    // the block does not read or write the looper, it is
+    // counted here and stored to the memory when it ends
+    private Object counted(Expression.For expr, Memory outer,
+                           double from, double to, boolean reverse) {
+        List<Expression> loop = expr.block;
+        double step = reverse ? -1 : 1;
+        // a reverse loop tests one less the first time
+        if (reverse ? from - 1 < to : from > to) {
+            return null;
+        }
+        Object result = null;
+        double x = from;
+        do {
+            Signal signal = evaluate(loop);
+            x += step;
+            if (signal == Signal.BREAK) {
+                break;
+            } else if (signal == Signal.FORWARD) {
+                x += reverse ? -forwardBy : forwardBy;
+            } else if (signal != null && signal != Signal.CONTINUE) {
+                result = signal;
+                break;
+            }
+            memory.delete();
+        } while (reverse ? x >= to : x <= to);
+        outer.setDouble(expr.slot, x);
+        return result;
+    }
+
+    private Object countedLong(Expression.For expr, Memory outer,
+                               long from, long to, boolean reverse) {
+        List<Expression> loop = expr.block;
+        long step = reverse ? -1 : 1;
+        if (reverse ? from - 1 < to : from > to) {
+            return null;
+        }
+        Object result = null;
+        long x = from;
+        do {
+            Signal signal = evaluate(loop);
+            x += step;
+            if (signal == Signal.BREAK) {
+                break;
+            } else if (signal == Signal.FORWARD) {
+                x += (long) (reverse ? -forwardBy : forwardBy);
+            } else if (signal != null && signal != Signal.CONTINUE) {
+                result = signal;
+                break;
+            }
+            memory.delete();
+        } while (reverse ? x >= to : x <= to);
+        outer.setLong(expr.slot, x);
+        return result;
+    }
+
     @Override
     public Object visitRangeExpr(Expression.Range expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
-        if (left instanceof Double && right instanceof Double) {
+        if ((left instanceof Double || left instanceof Long)
+                && (right instanceof Double || right instanceof Long)) {
             return new Object[]{
                     expr.type.type,
                     left, right};
@@ -414,14 +1139,26 @@ public class Evaluator implements Expression.Visitor<Object> {
 
     @Override
     public Object visitWhileExpr(Expression.While expr) {
+        if (expr.invariants == 0) {
+            return whileLoop(expr);
+        }
+        enterLoop(expr, expr.invariants);
+        try {
+            return whileLoop(expr);
+        } finally {
+            exitLoop();
+        }
+    }
+
+    private Object whileLoop(Expression.While expr) {
         for (; ; ) {
             if (truthy(evaluate(expr.expr))) {
-                Interrupt val = evaluate(expr.body);
-                if (val != null) {
-                    if ("break".equals(val.type())) {
+                Signal signal = evaluate(expr.body);
+                if (signal != null) {
+                    if (signal == Signal.BREAK) {
                         break;
                     }
-                    return val;
+                    return signal;
                 }
             } else {
                 break;
@@ -432,41 +1169,63 @@ public class Evaluator implements Expression.Visitor<Object> {
 
     @Override
     public Object visitEachExpr(Expression.Each expr) {
+        if (expr.invariants == 0) {
+            return eachLoop(expr);
+        }
+        enterLoop(expr, expr.invariants);
+        try {
+            return eachLoop(expr);
+        } finally {
+            exitLoop();
+        }
+    }
+
+    private Object eachLoop(Expression.Each expr) {
         String targetName = expr.targetName.lexeme;
-        String elementName = expr.elementName.lexeme;
 
-        lowerMemory("each");
-        Object val = memory.getVal(targetName);
+        lowerMemory("each", expr.layout);
+        Object val = expr.targetSlot == -1
+                ? memory.getVal(targetName)
+                : memory.getAt(expr.targetDepth, expr.targetSlot, targetName);
 
-        Interrupt result = null;
+        Signal result = null;
         // guys, any ideas, how to reuse code multiple
         // times?
         if (val instanceof List<?> exprs) {
             loop:
             for (Object elementVal : exprs) {
-                result = untilInterrupt(expr, elementName,
+                result = untilInterrupt(expr,
                         evaluate((Expression) elementVal));
-                if (result != null) {
-                    switch (result.type()) {
-                        case "break":
-                            break loop;
-                        case "continue":
-                            break;
-                    }
+                if (result == Signal.BREAK) {
+                    break loop;
+                }
+            }
+        } else if (val instanceof NumberArray array) {
+            // the length is read again, as in a for
+            // over the indexes of the array
+            loop:
+            for (int i = 0; i < array.length(); i++) {
+                result = untilInterrupt(expr, array.get(i));
+                if (result == Signal.BREAK) {
+                    break loop;
+                }
+            }
+        } else if (val instanceof Object[] array) {
+            loop:
+            for (Object elementVal : array) {
+                result = untilInterrupt(expr, elementVal);
+                if (result == Signal.BREAK) {
+                    break loop;
                 }
             }
-        } else if (val instanceof String vVal) {
+        } else if (val instanceof CharSequence string) {
+            String vVal = string.toString();
             loop:
             for (char aChar : vVal.toCharArray()) {
                 result = untilInterrupt(expr,
-                        elementName, String.valueOf(aChar));
-                if (result != null) {
-                    switch (result.type()) {
-                        case "break":
-                            break loop;
-                        case "continue":
-                            break;
-                    }
+                        String.valueOf(aChar));
+                if (result == Signal.BREAK) {
+                    break loop;
                 }
             }
         } else {
@@ -476,115 +1235,498 @@ public class Evaluator implements Expression.Visitor<Object> {
         return result;
     }
 
+    private void enterLoop(Expression loop, int count) {
+        Object[] values = new Object[count];
+        Arrays.fill(values, UNSET);
+        invariants.add(new Invariants(loop, values));
+    }
+
+    private void exitLoop() {
+        invariants.remove(invariants.size() - 1);
+    }
+
+    @Override
+    public Object visitInvariantExpr(Expression.Invariant expr) {
+        for (int i = invariants.size() - 1; i >= 0; i--) {
+            Invariants frame = invariants.get(i);
+            if (frame.loop == expr.loop) {
+                Object value = frame.values[expr.index];
+                if (value == UNSET) {
+                    value = frame.values[expr.index] = evaluate(expr.expression);
+                }
+                return value;
+            }
+        }
+        // run by the vm, which does not keep them
+        return evaluate(expr.expression);
+    }
+
+    @Override
+    public Object visitFusedExpr(Expression.Fused expr) {
+        return switch (expr.shape) {
+            case Expression.Fused.STEP -> step((Expression.BinaryUnary) expr.original);
+            case Expression.Fused.ARRAY_UPDATE -> update(expr);
+            case Expression.Fused.LENGTH_CHECK -> lengthCheck(expr);
+            case Expression.Fused.DEFINE -> define((Expression.Val) expr.original);
+            default -> throw new IllegalStateException("Unknown shape " + expr.shape);
+        };
+    }
+
+    // x++ as a statement, the value is not boxed
+    private Object step(Expression.BinaryUnary expr) {
+        if (expr.slot != -1) {
+            Memory frame = memory.at(expr.depth);
+            boolean increment = expr.operator.type == TokenType.INCREMENT;
+            if (frame.hasLong(expr.slot)) {
+                long x = frame.getLong(expr.slot);
+                if (x != (increment ? Long.MAX_VALUE : Long.MIN_VALUE)) {
+                    frame.setLong(expr.slot, increment ? x + 1 : x - 1);
+                    return null;
+                }
+            } else if (frame.hasDouble(expr.slot)) {
+                double x = frame.getDouble(expr.slot);
+                frame.setDouble(expr.slot, increment ? x + 1 : x - 1);
+                return null;
+            }
+        }
+        visitBinaryUnaryExpr(expr);
+        return null;
+    }
+
+    // a[i] = a[j] op x, the array is looked up once
+    // and the numbers are not taken out of it
+    private Object update(Expression.Fused fused) {
+        Expression.Val val = (Expression.Val) fused.original;
+        Expression.ArrayAccess target = (Expression.ArrayAccess) val.valId.get();
+        Expression.Binary binary = (Expression.Binary) val.expression;
+        Specialization specialization = binary.specialization;
+        Object array = evaluate(target.array);
+        if (array instanceof NumberArray numbers && numbers.numeric()
+                && (specialization.longs() || specialization.doubles())) {
+            Expression.ArrayAccess read = (Expression.ArrayAccess)
+                    (fused.flipped ? binary.right : binary.left);
+            Expression other = fused.flipped ? binary.left : binary.right;
+            TokenType operator = binary.operator.type;
+            try {
+                int from = getArrayIndex(read);
+                if (specialization.longs() && numbers.integer(from)) {
+                    long x = numbers.longAt(from);
+                    long y = evaluateLong(other);
+                    long value = fused.flipped
+                            ? Integers.arithmetic(operator, y, x)
+                            : Integers.arithmetic(operator, x, y);
+                    numbers.setLong(getArrayIndex(target), value);
+                    return null;
+                } else if (specialization.doubles()
+                        && !numbers.integer(from) && !numbers.unset(from)) {
+                    double x = numbers.doubleAt(from);
+                    double y;
+                    try {
+                        y = evaluateDouble(other);
+                    } catch (NotNumber e) {
+                        if (!(e.value instanceof Long n)) {
+                            throw e;
+                        }
+                        // a long with a double is a double
+                        y = n;
+                    }
+                    double left = fused.flipped ? y : x;
+                    double right = fused.flipped ? x : y;
+                    numbers.setDouble(getArrayIndex(target), switch (operator) {
+                        case PLUS -> left + right;
+                        case MINUS -> left - right;
+                        case STAR -> left * right;
+                        case SLASH -> left / right;
+                        default -> left % right;
+                    });
+                    return null;
+                }
+            } catch (NotNumber ignored) {
+                // a type changed or an integer overflowed, the
+                // parts have no effects and are evaluated again
+            }
+        }
+        visitValEpr(val);
+        return null;
+    }
+
+    // x < len(a), without the call of len()
+    private Object lengthCheck(Expression.Fused fused) {
+        Expression.Logical logical = (Expression.Logical) fused.original;
+        Expression.FunCall call = (Expression.FunCall)
+                (fused.flipped ? logical.left : logical.right);
+        if (!(binding(call).aNative instanceof Len)) {
+            // a fun named len() was defined
+            return visitLogicalExpr(logical);
+        }
+        // in the order of the operands
+        Expression other = fused.flipped ? logical.right : logical.left;
+        long x = 0;
+        Object array;
+        try {
+            if (!fused.flipped) {
+                x = evaluateLong(other);
+            }
+            array = evaluate(call.args.get(0));
+            if (fused.flipped) {
+                x = evaluateLong(other);
+            }
+        } catch (NotNumber e) {
+            return visitLogicalExpr(logical);
+        }
+        long length;
+        if (array instanceof NumberArray numbers) {
+            length = numbers.length();
+        } else if (array instanceof Object[] objects) {
+            length = objects.length;
+        } else if (array instanceof CharSequence string) {
+            length = string.length();
+        } else {
+            return visitLogicalExpr(logical);
+        }
+        long left = fused.flipped ? length : x;
+        long right = fused.flipped ? x : length;
+        return switch (logical.operator.type) {
+            case BELOW -> left < right;
+            case BELOW_EQUAL -> left <= right;
+            case ABOVE -> left > right;
+            default -> left >= right;
+        };
+    }
+
+    // val y = x or val y = a[i], a number is not boxed
+    private Object define(Expression.Val val) {
+        if (val.slot == -1) {
+            return visitValEpr(val);
+        }
+        String name = ((Token) val.valId.get()).lexeme;
+        if (val.expression instanceof Expression.ArrayAccess access) {
+            Object array = evaluate(access.array);
+            if (array instanceof NumberArray numbers && numbers.numeric()) {
+                int index = getArrayIndex(access);
+                if (numbers.integer(index)) {
+                    memory.defineLongAt(val.slot, name, numbers.longAt(index));
+                } else if (numbers.unset(index)) {
+                    memory.defineAt(val.slot, name, null);
+                } else {
+                    memory.defineDoubleAt(val.slot, name, numbers.doubleAt(index));
+                }
+            } else {
+                memory.defineAt(val.slot, name, element(array, access));
+            }
+            return null;
+        }
+        Expression.Identifier identifier = (Expression.Identifier) val.expression;
+        if (identifier.slot != -1) {
+            Memory frame = memory.at(identifier.depth);
+            if (frame.hasLong(identifier.slot)) {
+                memory.defineLongAt(val.slot, name, frame.getLong(identifier.slot));
+                return null;
+            } else if (frame.hasDouble(identifier.slot)) {
+                memory.defineDoubleAt(val.slot, name, frame.getDouble(identifier.slot));
+                return null;
+            }
+        }
+        return visitValEpr(val);
+    }
+
     // used for visitEachExpr() to iterate on multiple
     // types of elements (Array, String)
-    private Interrupt untilInterrupt(Expression.Each expr,
-                                     String elementName, Object elementVal) {
-        Interrupt result;
-        memory.defineVal(elementName, elementVal);
+    private Signal untilInterrupt(Expression.Each expr, Object elementVal) {
+        Signal result;
+        memory.defineAt(expr.slot, expr.elementName.lexeme, elementVal);
 
         // delete memory
         result = evaluate(expr.body);
         memory.delete();
-        if (result != null) {
-            switch (result.type()) {
-                case "break":
-                    break;
-                case "continue":
-                    // the, evaluate(List) function has
-                    // already stopped execution
-                    return null;
-            }
+        if (result == Signal.CONTINUE) {
+            // the, evaluate(List) function has
+            // already stopped execution
+            return null;
         }
         return result;
     }
 
+    public void defineFun(String name, Object fun) {
+        memory.defineFun(name, fun);
+        functions.add(name);
+        if (memory != headMemory) {
+            nested = true;
+        }
+        epoch++;
+    }
+
+    Native getNative(String funId) {
+        Native aNative = natives.get(funId);
+        if (aNative == null) {
+            aNative = Native.create(this, funId);
+            if (aNative != null) {
+                natives.put(funId, aNative);
+            }
+        }
+        return aNative;
+    }
+
+    private Binding bind(String funId) {
+        if (!functions.contains(funId)) {
+            return new Binding(this, epoch, getNative(funId), null);
+        }
+        // a user fun of the same name shadows the native
+        return new Binding(this, epoch, null,
+                nested ? null : headMemory.getFun(funId));
+    }
+
+    Binding binding(Expression.FunCall expr) {
+        Binding binding = expr.binding;
+        if (binding == null || binding.owner != this || binding.epoch != epoch) {
+            expr.binding = binding = bind(expr.funId.lexeme);
+        }
+        return binding;
+    }
+
+    @Override
+    public Object visitInlinedExpr(Expression.Inlined expr) {
+        Binding binding = binding(expr.call);
+        Object function = binding.function;
+        if (function == null && binding.aNative == null) {
+            function = memory.getFun(expr.call.funId.lexeme);
+        }
+        if (function == expr.fun) {
+            return evaluate(expr.body);
+        }
+        return visitFunCallExpr(expr.call);
+    }
+
     @SneakyThrows
     @Override
     public Object visitFunCallExpr(Expression.FunCall expr) {
         String funId = expr.funId.lexeme;
-        Native aNative = Native.create(this, funId);
+        Binding binding = binding(expr);
 
-        if (aNative != null) {
+        if (binding.aNative != null) {
             // a native method call like print()
-            return aNative.accept(expr.args);
+            return binding.aNative.accept(expr.args);
         } else {
-            Object function = memory.getFun(funId);
-            if (function instanceof Method method) {
-                List<Expression> args = expr.args;
-
-                int size = args.size();
-                Object[] _args = new Object[size];
-                for (int i = 0; i < size; i++) {
-                    _args[i] = evaluate(args.get(i));
+            Object function = binding.function;
+            if (function == null) {
+                function = memory.getFun(funId);
+            }
+            if (function == null) {
+                // user fun is not visible from here
+                Native aNative = getNative(funId);
+                if (aNative != null) {
+                    return aNative.accept(expr.args);
                 }
-                // null because, they are static
-                // methods
-                return method.invoke(null, _args);
+            }
+            if (function instanceof Imported imported) {
+                return call(imported, expr.args);
             }
             Expression.Fun fun = (Expression.Fun) function;
             List<Expression> callArgs = expr.args;
-            List<Token> signature = fun.args;
 
-            int expected = signature.size();
+            int expected = fun.params.length;
             int got = callArgs.size();
 
             if (expected != got) {
                 throw new RuntimeError("fun " + funId + "() " +
                         expected + " arguments, but got " + got);
             }
-            lowerMemory("fun " + funId);
-            for (int i = 0; i < signature.size(); i++) {
-                memory.define(
-                        signature.get(i).lexeme,
-                        evaluate(callArgs.get(i)));
+            // args are evaluated in the memory of the caller
+            Object[] values = new Object[got];
+            for (int i = 0; i < got; i++) {
+                values[i] = evaluate(callArgs.get(i));
+            }
+            if (expr.caller != null && tailCall(expr, binding, fun)) {
+                // the memory of the caller is dropped and
+                // the call is made by the one that called it
+                nextCall = new TailCall(fun, values, expr.discard);
+                return Signal.TAIL;
+            }
+            if (fun.memo) {
+                return memoized(fun, values);
             }
-            Object invokeResult = null;
-            Interrupt interrupt = evaluate(fun.expressions);
-            if (interrupt != null) {
-                invokeResult = interrupt.value();
+            return invoke(fun, values);
+        }
+    }
+
+    Object memoized(Expression.Fun fun, Object[] values) {
+        Memo.Key key = Memo.key(fun, values);
+        if (key == null) {
+            return invoke(fun, values);
+        }
+        Object result = memo.get(key);
+        if (result == key) {
+            result = invoke(fun, values);
+            memo.put(key, result);
+        }
+        return result;
+    }
+
+    Object invoke(Expression.Fun fun, Object[] values) {
+        // true if a call on the way did not return its result
+        boolean discard = false;
+        for (; ; ) {
+            Object jitted = compiled(fun, values);
+            if (jitted != Jit.MISS) {
+                return discard ? null : jitted;
             }
+            enter(fun, values);
+            Signal signal = vm != null ? vm.execute(fun) : evaluate(fun.expressions);
             upperMemory();
-            return invokeResult;
+            if (signal == Signal.TAIL) {
+                TailCall call = nextCall;
+                nextCall = null;
+                discard |= call.discard();
+                fun = call.fun();
+                values = call.values();
+                continue;
+            }
+            if (signal != Signal.RETURN || discard) {
+                return null;
+            }
+            Object result = returned;
+            returned = null;
+            return result;
+        }
+    }
+
+    // the result of the fun compiled by the Jit, or Jit.MISS
+    Object compiled(Expression.Fun fun, Object[] values) {
+        if (jit.threshold() > 0) {
+            return jit.call(fun, values);
+        }
+        return Jit.MISS;
+    }
+
+    // the memory of the fun with the args, left by upperMemory()
+    void enter(Expression.Fun fun, Object[] values) {
+        lowerMemory(fun.memoryName, fun.layout);
+        int[] params = fun.params;
+        for (int i = 0; i < params.length; i++) {
+            memory.setSlot(params[i], values[i]);
+        }
+    }
+
+    // the caller's memory can be dropped when the fun is the
+    // one at the head, and nothing it could call looks up
+    // a name that the caller has defined
+    boolean tailCall(Expression.FunCall expr, Binding binding,
+                      Expression.Fun fun) {
+        Tail tail = expr.tail;
+        if (tail == null || tail.binding != binding) {
+            // a memo fun is called through its cache
+            boolean safe = binding.function == fun && !fun.memo
+                    && !reaches(fun, expr.caller.declared, new HashSet<>());
+            expr.tail = tail = new Tail(binding, safe);
         }
+        return tail.safe;
+    }
+
+    private boolean reaches(Expression.Fun fun, Set<String> names,
+                            Set<Expression.Fun> seen) {
+        for (String name : fun.free) {
+            if (names.contains(name)) {
+                return true;
+            }
+            if (functions.contains(name)
+                    && headMemory.getFun(name) instanceof Expression.Fun callee
+                    && seen.add(callee) && reaches(callee, names, seen)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Object call(Imported imported, List<Expression> args) {
+        int size = args.size();
+        if (size != imported.arity) {
+            throw new RuntimeError("fun " + imported.name + "() " +
+                    imported.arity + " arguments, but got " + size);
+        }
+        switch (size) {
+            case 0:
+                return imported.call();
+            case 1:
+                return imported.call(external(evaluate(args.get(0))));
+            case 2:
+                return imported.call(external(evaluate(args.get(0))),
+                        external(evaluate(args.get(1))));
+        }
+        Object[] _args = new Object[size];
+        for (int i = 0; i < size; i++) {
+            _args[i] = external(evaluate(args.get(i)));
+        }
+        return imported.call(_args);
+    }
+
+    // with the args the vm ran, as many as it takes
+    Object call(Imported imported, Object[] values) {
+        switch (values.length) {
+            case 0:
+                return imported.call();
+            case 1:
+                return imported.call(external(values[0]));
+            case 2:
+                return imported.call(external(values[0]), external(values[1]));
+        }
+        Object[] _args = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            _args[i] = external(values[i]);
+        }
+        return imported.call(_args);
+    }
+
+    // the value as the java side knows it, ropes are
+    // Strings and number arrays are boxed copies
+    static Object external(Object value) {
+        if (value instanceof NumberArray array) {
+            return array.toArray();
+        }
+        return Rope.flat(value);
     }
 
     @Override
     public Object visitFunExpr(Expression.Fun expr) {
-        memory.defineFun(expr.funId.lexeme, expr);
+        defineFun(expr.funId.lexeme, expr);
         return null;
     }
 
     @Override
     public Object visitReturnExpr(Expression.Return expr) {
-        return new Interrupt(
-                "return", evaluate(expr.expression));
+        Object value = evaluate(expr.expression);
+        if (value == Signal.TAIL) {
+            // a call in tail position
+            return value;
+        }
+        returned = value;
+        return Signal.RETURN;
     }
 
-    private static void cannotApplyOperator(Token operator) {
+    static void cannotApplyOperator(Token operator) {
         cannotApplyOperator(operator, "non values(s).");
     }
 
-    private static void cannotApplyOperator(Token operator, String type) {
+    static void cannotApplyOperator(Token operator, String type) {
         Sketch.error(operator,
                 "Operator cannot be applied on " + type);
     }
 
     @Override
     public Object visitBreakExpr(Expression.Break expr) {
-        return new Interrupt("break", null);
+        return Signal.BREAK;
     }
 
     @Override
     public Object visitContinueExpr(Expression.Continue expr) {
-        return new Interrupt("continue", null);
+        return Signal.CONTINUE;
     }
 
     @Override
     public Object visitForwardExpr(Expression.Forward expr) {
         Object times = evaluate(expr.expression);
-        if (times instanceof Double) {
-            return new Interrupt("forward", times);
+        if (times instanceof Double || times instanceof Long) {
+            forwardBy = ((Number) times).doubleValue();
+            return Signal.FORWARD;
         }
         throw new RuntimeError("Expected number for \"forward;\"");
     }
@@ -594,16 +1736,30 @@ public class Evaluator implements Expression.Visitor<Object> {
             return false;
         if (left == null)
             return false;
-        return left.equals(right);
+        if (left instanceof Long && right instanceof Double
+                || left instanceof Double && right instanceof Long) {
+            // as Double.equals() on the long made a double
+            return Double.compare(((Number) left).doubleValue(),
+                    ((Number) right).doubleValue()) == 0;
+        }
+        return Rope.flat(left).equals(Rope.flat(right));
     }
 
-    private static boolean truthy(Object object) {
+    static boolean truthy(Object object) {
         if (object instanceof Boolean bool)
             return bool;
         throw new RuntimeError("Expected truthy, got \"" + object + "\"");
     }
 
-    record Interrupt(String type, Object value) {
+    // what stopped a list of statements, the values
+    // they carry are kept in the Evaluator
+    enum Signal {
+        BREAK, CONTINUE, FORWARD, RETURN, TAIL
+    }
+
+    record TailCall(Expression.Fun fun, Object[] values, boolean discard) {
+    }
 
+    record Tail(Binding binding, boolean safe) {
     }
 }
\ No newline at end of file
@@ -3,10 +3,12 @@ package xyz.kumaraswamy.sketch.processor;
 import xyz.kumaraswamy.sketch.Visit;
 import xyz.kumaraswamy.sketch.lex.TokenType;
 import xyz.kumaraswamy.sketch.lex.Token;
+import xyz.kumaraswamy.sketch.memory.Layout;
 
 import java.util.List;
+import java.util.Set;
 
-public abstract class Expression implements Visit {
+public abstract sealed class Expression implements Visit {
 
     interface Visitor<R> {
         R visitWithExpr(With expr);
@@ -14,6 +16,9 @@ public abstract class Expression implements Visit {
         R visitBinaryUnaryExpr(BinaryUnary expr);
         R visitUnaryExpr(Unary expr);
         R visitLogicalExpr(Logical expr);
+        R visitLogicalAndExpr(LogicalAnd expr);
+        R visitLogicalOrExpr(LogicalOr expr);
+        R visitBitwiseExpr(Bitwise expr);
         R visitArrayExpr(Array expr);
         R visitLiteralExpr(Literal<?> expr);
         R visitArrayAccessExpr(ArrayAccess expr);
@@ -31,11 +36,14 @@ public abstract class Expression implements Visit {
         R visitContinueExpr(Continue expr);
         R visitForwardExpr(Forward expr);
         R visitFunCallExpr(FunCall expr);
+        R visitInlinedExpr(Inlined expr);
+        R visitInvariantExpr(Invariant expr);
+        R visitFusedExpr(Fused expr);
         R visitIdentifierExpr(Identifier expr);
         R visitPropertyAccessExpr(PropertyIdentifier expr);
     }
 
-    public static class With extends Expression {
+    public static final class With extends Expression {
 
         public With(Token from, Token func, Token as) {
             this.from = from;
@@ -60,7 +68,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Binary extends Expression {
+    public static final class Binary extends Expression {
         public Binary(Expression left, Token operator, Expression right) {
             if (right == null || left == null) {
                 throw new RuntimeException();
@@ -73,6 +81,18 @@ public abstract class Expression implements Visit {
         final Token operator;
         final Expression right;
 
+        // rewritten by the Evaluator from
+        // the observed operand types, the runs of a
+        // CompiledScript on other threads share them without
+        // a lock, they are only hints, a specialized path
+        // checks the operands and makes the node GENERIC when
+        // they do not fit. the values are enum constants, a run
+        // sees an old one or a new one, and a lost count of
+        // the executions only delays the specialization
+        Specialization specialization = Specialization.UNINITIALIZED;
+        Specialization observed;
+        int executions;
+
         @Override
         public String visit() {
             return "(" + operator.lexeme + " " +
@@ -86,7 +106,7 @@ public abstract class Expression implements Visit {
     }
 
     // for increment and decrement operators
-    public static class BinaryUnary extends Expression {
+    public static final class BinaryUnary extends Expression {
 
         public BinaryUnary(boolean left, Token valId, Token operator) {
             this.left = left;
@@ -98,6 +118,9 @@ public abstract class Expression implements Visit {
         final Token valId;
         final Token operator;
 
+        // bound by the Resolver
+        int depth = -1, slot = -1;
+
         @Override
         public String visit() {
             return "direct operator (" + left + " " +
@@ -110,7 +133,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    static class Logical extends Expression {
+    static final class Logical extends Expression {
 
         public Logical(Expression left, Token operator, Expression right) {
             this.left = left;
@@ -122,6 +145,11 @@ public abstract class Expression implements Visit {
         Token operator;
         Expression right;
 
+        // shared by the runs as those of a Binary are
+        Specialization specialization = Specialization.UNINITIALIZED;
+        Specialization observed;
+        int executions;
+
         @Override
         public String visit() {
             return "(logical " + operator.lexeme + " " +
@@ -134,7 +162,81 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Array extends Expression {
+    // right is evaluated only if left is true
+    static final class LogicalAnd extends Expression {
+
+        public LogicalAnd(Expression left, Token operator, Expression right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        final Expression left;
+        final Token operator;
+        final Expression right;
+
+        @Override
+        public String visit() {
+            return "(&& " + left.visit() + " " + right.visit() + ")";
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLogicalAndExpr(this);
+        }
+    }
+
+    // right is evaluated only if left is false
+    static final class LogicalOr extends Expression {
+
+        public LogicalOr(Expression left, Token operator, Expression right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        final Expression left;
+        final Token operator;
+        final Expression right;
+
+        @Override
+        public String visit() {
+            return "(|| " + left.visit() + " " + right.visit() + ")";
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLogicalOrExpr(this);
+        }
+    }
+
+    // & and | of booleans or whole numbers,
+    // both sides are evaluated
+    static final class Bitwise extends Expression {
+
+        public Bitwise(Expression left, Token operator, Expression right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        final Expression left;
+        final Token operator;
+        final Expression right;
+
+        @Override
+        public String visit() {
+            return "(bitwise " + operator.lexeme + " " +
+                    left.visit() + " " + right.visit() + ")";
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBitwiseExpr(this);
+        }
+    }
+
+    public static final class Array extends Expression {
 
         public Array(List<Expression> exprs) {
             this.exprs = exprs;
@@ -153,7 +255,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Literal<T> extends Expression {
+    public static final class Literal<T> extends Expression {
         public Literal(T value) {
             if (value instanceof Literal<?>) {
                 throw new RuntimeException();
@@ -173,12 +275,15 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Identifier extends Expression {
+    public static final class Identifier extends Expression {
         public Identifier(Token token) {
             this.token = token;
         }
         Token token;
 
+        // bound by the Resolver
+        int depth = -1, slot = -1;
+
         @Override
         public String visit() {
             return String.valueOf(token);
@@ -190,7 +295,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class ArrayAccess extends Expression {
+    public static final class ArrayAccess extends Expression {
         public ArrayAccess(Expression array, Expression access) {
             this.array = array;
             this.access = access;
@@ -210,7 +315,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class PropertyIdentifier extends Expression {
+    public static final class PropertyIdentifier extends Expression {
         public PropertyIdentifier(Token name, Token property) {
             this.name = name;
             this.property = property;
@@ -230,7 +335,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Unary extends Expression {
+    public static final class Unary extends Expression {
         public Unary(Token operator, Expression expression) {
             this.operator = operator;
             this.expression = expression;
@@ -249,7 +354,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Shared extends Expression {
+    public static final class Shared extends Expression {
         public Shared(Val val) {
             this.val = val;
         }
@@ -266,7 +371,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Val extends Expression {
+    public static final class Val extends Expression {
         // if assignment is true, it means no
         // val keyword was used
 
@@ -312,6 +417,9 @@ public abstract class Expression implements Visit {
         ValId valId;
         Expression expression;
 
+        // bound by the Resolver
+        int depth = -1, slot = -1;
+
         @Override
         public String visit() {
             return "(val " + datatype.name() + " " + (!assignment ? "new " : "") + valId + ") " + expression.visit();
@@ -323,7 +431,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Ternary extends Expression {
+    public static final class Ternary extends Expression {
 
         public Ternary(Expression expr, Expression then, Expression or) {
             this.expr = expr;
@@ -347,7 +455,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class If extends Expression {
+    public static final class If extends Expression {
 
         public If(Expression expr, List<Expression> body, List<Expression> orElse) {
             this(expr, body);
@@ -363,6 +471,8 @@ public abstract class Expression implements Visit {
         List<Expression> body;
         List<Expression> orElse = null;
 
+        Layout layout;
+
         @Override
         public String visit() {
             return "(if " + expr.visit() + " then " + body + ")";
@@ -374,7 +484,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Range extends Expression {
+    public static final class Range extends Expression {
 
         public Range(Token type, Expression left, Expression right) {
             this.type = type;
@@ -398,7 +508,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class For extends Expression {
+    public static final class For extends Expression {
 
         // if shared is true, the value
         // identifier for the looper will
@@ -416,6 +526,16 @@ public abstract class Expression implements Visit {
         Range range;
         List<Expression> block;
 
+        // the looper is defined in the outer
+        // memory, the block gets its own
+        int slot = -1;
+        Layout layout;
+        // set by the Resolver when nothing in the block can
+        // see the looper, it is counted in a local then
+        boolean counted;
+        // values kept while it runs, set by the Hoister
+        int invariants;
+
         @Override
         public String visit() {
             return "for(" + valId.lexeme + ", " + range.visit() + " " + block + ")";
@@ -427,7 +547,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class While extends Expression {
+    public static final class While extends Expression {
         public While(Expression expr, List<Expression> body) {
             this.expr = expr;
             this.body = body;
@@ -436,9 +556,11 @@ public abstract class Expression implements Visit {
         Expression expr;
         List<Expression> body;
 
+        // values kept while it runs, set by the Hoister
+        int invariants;
+
         @Override
         public String visit() {
-            System.out.println(expr instanceof While);
             return "(while " + expr + " do " + body + ")";
         }
 
@@ -448,7 +570,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Each extends Expression {
+    public static final class Each extends Expression {
         public Each(Token targetName, Token elementName, List<Expression> body) {
             this.targetName = targetName;
             this.elementName = elementName;
@@ -459,6 +581,13 @@ public abstract class Expression implements Visit {
         final Token elementName;
         final List<Expression> body;
 
+        int targetDepth = -1, targetSlot = -1;
+        int slot = -1;
+        Layout layout;
+
+        // values kept while it runs, set by the Hoister
+        int invariants;
+
         @Override
         public String visit() {
             return "each(" + targetName.lexeme + ", " +
@@ -471,21 +600,49 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Fun extends Expression {
+    public static final class Fun extends Expression {
 
         public Fun(Token funId, List<Token> args, List<Expression> expressions) {
+            this(funId, args, expressions, false);
+        }
+
+        public Fun(Token funId, List<Token> args, List<Expression> expressions, boolean memo) {
             this.funId = funId;
             this.args = args;
             this.expressions = expressions;
+            this.memo = memo;
+            memoryName = "fun " + funId.lexeme;
         }
 
         Token funId;
         List<Token> args;
         List<Expression> expressions;
+        // results are cached by the args
+        final boolean memo;
+
+        final String memoryName;
+        // slots of the args, the layout
+        // is the size of the call memory
+        int[] params;
+        Layout layout;
+
+        // names defined in the memories of the fun, and
+        // the names it looks up from the memory of the caller
+        Set<String> declared;
+        Set<String> free;
+
+        // the body compiled by the VM
+        Chunk chunk;
+
+        // set by the Jit
+        Jit.Compiled compiled;
+        int calls;
+        int deopts;
+        boolean rejected;
 
         @Override
         public String visit() {
-            return "(fun " + args + ", " + expressions + ")";
+            return (memo ? "(memo fun " : "(fun ") + args + ", " + expressions + ")";
         }
 
         @Override
@@ -494,7 +651,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static abstract class Interruption extends Expression {
+    public static abstract sealed class Interruption extends Expression {
 
         abstract Expression expr();
 
@@ -509,7 +666,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Return extends Interruption {
+    public static final class Return extends Interruption {
         public Return(Expression expression) {
             this.expression = expression;
         }
@@ -530,7 +687,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Break extends Interruption {
+    public static final class Break extends Interruption {
 
         public static final Break BREAK = new Break();
 
@@ -549,7 +706,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Continue extends Interruption {
+    public static final class Continue extends Interruption {
 
         public static final Continue CONTINUE = new Continue();
 
@@ -568,7 +725,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class Forward extends Interruption {
+    public static final class Forward extends Interruption {
 
         public Forward(Expression expression) {
             this.expression = expression;
@@ -589,7 +746,7 @@ public abstract class Expression implements Visit {
         }
     }
 
-    public static class FunCall extends Expression {
+    public static final class FunCall extends Expression {
 
         public FunCall(Token funId, List<Expression> args) {
             this.funId = funId;
@@ -599,6 +756,14 @@ public abstract class Expression implements Visit {
         final Token funId;
         final List<Expression> args;
 
+        Evaluator.Binding binding;
+
+        // set when the call is in a tail position of
+        // the fun, discard if the result is not returned
+        Fun caller;
+        boolean discard;
+        Evaluator.Tail tail;
+
         @Override
         public String visit() {
             return "(funcall " + funId.lexeme + " " + args + ")";
@@ -610,6 +775,97 @@ public abstract class Expression implements Visit {
         }
     }
 
+    // a call to a small fun, replaced by its body, the call
+    // is kept for when the name is not bound to the
+    // same fun at runtime
+    public static final class Inlined extends Expression {
+
+        public Inlined(FunCall call, Fun fun, Expression body) {
+            this.call = call;
+            this.fun = fun;
+            this.body = body;
+        }
+
+        final FunCall call;
+        // the fun the call has to be bound to
+        Fun fun;
+        final Expression body;
+
+        @Override
+        public String visit() {
+            return "(inlined " + call.visit() + " " + body.visit() + ")";
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInlinedExpr(this);
+        }
+    }
+
+    // an expression of a loop that has no effects and reads
+    // nothing the loop writes, its value is kept from the
+    // first time it is evaluated each time the loop runs
+    public static final class Invariant extends Expression {
+
+        public Invariant(Expression expression, int index) {
+            this.expression = expression;
+            this.index = index;
+        }
+
+        final Expression expression;
+        final int index;
+
+        // the loop it is kept for
+        Expression loop;
+
+        @Override
+        public String visit() {
+            return "(invariant " + expression.visit() + ")";
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInvariantExpr(this);
+        }
+    }
+
+    // a statement or a condition of a common shape that the
+    // Evaluator runs in one step, made by the Fuser. the node
+    // it replaces is kept for the passes and the compilers
+    public static final class Fused extends Expression {
+
+        // x++ or x-- of which the value is not used
+        static final int STEP = 0;
+        // a[i] = a[j] op x
+        static final int ARRAY_UPDATE = 1;
+        // x < len(a)
+        static final int LENGTH_CHECK = 2;
+        // val y = x or val y = a[i] in a loop
+        static final int DEFINE = 3;
+
+        public Fused(int shape, Expression original, boolean flipped) {
+            this.shape = shape;
+            this.original = original;
+            this.flipped = flipped;
+        }
+
+        final int shape;
+        final Expression original;
+        // the operand the shape is about is on the right
+        // of an update, or on the left of a check
+        final boolean flipped;
+
+        @Override
+        public String visit() {
+            return "(fused " + original.visit() + ")";
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFusedExpr(this);
+        }
+    }
+
     public abstract <R> R accept(Visitor<R> visitor);
 
     @Override
@@ -0,0 +1,234 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import xyz.kumaraswamy.sketch.lex.Token;
+import xyz.kumaraswamy.sketch.lex.TokenType;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// replaces the statements and conditions that most loops
+// are made of by a node that the Evaluator runs in one step,
+// like x++ that does not box the value, a[i] = a[i - 1] * 2
+// that looks the array up once or x < len(a) that does not
+// go through the call of len().
+//
+// the parts of a fused node have no effects, when a value is
+// not of the type the step is for, the Evaluator runs the
+// node it replaces, which evaluates the parts again
+public class Fuser extends Rewriter {
+
+    private final Set<String> defined = new HashSet<>();
+    // the number of nodes fused for each shape
+    private final Map<String, Integer> report = new LinkedHashMap<>();
+
+    // the loops and funs that were made again, the Invariants
+    // of the Hoister refer to the loop they are kept for and
+    // the Inlined calls to the fun they are guarded by
+    private final Map<Expression, Expression> rebuilt = new IdentityHashMap<>();
+    private final List<Expression.Invariant> invariants = new ArrayList<>();
+    private final List<Expression.Inlined> inlined = new ArrayList<>();
+
+    // the loops the statements are in
+    private int depth = 0;
+
+    public List<Expression> fuse(List<Expression> exprs) {
+        Inliner.collect(exprs, defined, new HashSet<>());
+        List<Expression> fused = statements(exprs);
+        for (Expression.Invariant invariant : invariants) {
+            Expression loop = rebuilt.get(invariant.loop);
+            if (loop != null) {
+                invariant.loop = loop;
+            }
+        }
+        for (Expression.Inlined call : inlined) {
+            Expression fun = rebuilt.get(call.fun);
+            if (fun != null) {
+                call.fun = (Expression.Fun) fun;
+            }
+        }
+        return fused;
+    }
+
+    // the shapes and the number of nodes fused
+    public Map<String, Integer> report() {
+        return report;
+    }
+
+    private List<Expression> statements(List<Expression> exprs) {
+        List<Expression> rewritten = new ArrayList<>(exprs.size());
+        for (Expression expr : exprs) {
+            Expression result = rewrite(expr);
+            if (result != null) {
+                rewritten.add(statement(result));
+            }
+        }
+        return rewritten;
+    }
+
+    private Expression statement(Expression expr) {
+        if (expr instanceof Expression.BinaryUnary unary
+                && (unary.operator.type == TokenType.INCREMENT
+                || unary.operator.type == TokenType.DECREMENT)) {
+            return fused(Expression.Fused.STEP, expr, false, "step");
+        } else if (expr instanceof Expression.Val val) {
+            if (val.valId.get() instanceof Expression.ArrayAccess target) {
+                return update(val, target);
+            } else if (depth > 0 && !val.assignment
+                    && val.valId.get() instanceof Token
+                    && (val.expression instanceof Expression.Identifier
+                    || val.expression instanceof Expression.ArrayAccess access
+                    && quiet(access))) {
+                return fused(Expression.Fused.DEFINE, expr, false, "define");
+            }
+        }
+        return expr;
+    }
+
+    // a[i] = a[j] op x, or a[i] = x op a[j]
+    private Expression update(Expression.Val val, Expression.ArrayAccess target) {
+        if (!(target.array instanceof Expression.Identifier array)
+                || !quiet(target.access)
+                || !(val.expression instanceof Expression.Binary binary)
+                || !arithmetic(binary.operator.type)
+                || !quiet(binary)) {
+            return val;
+        }
+        if (element(binary.left, array)) {
+            return fused(Expression.Fused.ARRAY_UPDATE, val, false, "array update");
+        } else if (element(binary.right, array)) {
+            return fused(Expression.Fused.ARRAY_UPDATE, val, true, "array update");
+        }
+        return val;
+    }
+
+    private static boolean element(Expression expr, Expression.Identifier array) {
+        return expr instanceof Expression.ArrayAccess access
+                && access.array instanceof Expression.Identifier identifier
+                && identifier.token.lexeme.equals(array.token.lexeme);
+    }
+
+    private static boolean arithmetic(TokenType type) {
+        return type == TokenType.PLUS || type == TokenType.MINUS
+                || type == TokenType.STAR || type == TokenType.SLASH
+                || type == TokenType.PERCENTAGE;
+    }
+
+    // it can be evaluated again, it has no effects
+    // and reads the memory and the arrays only
+    private static boolean quiet(Expression expr) {
+        if (expr instanceof Expression.Literal<?>
+                || expr instanceof Expression.Identifier
+                || expr instanceof Expression.Invariant) {
+            return true;
+        } else if (expr instanceof Expression.Binary binary) {
+            return quiet(binary.left) && quiet(binary.right);
+        } else if (expr instanceof Expression.Unary unary) {
+            return quiet(unary.expression);
+        } else if (expr instanceof Expression.ArrayAccess access) {
+            return quiet(access.array) && quiet(access.access);
+        }
+        return false;
+    }
+
+    private Expression fused(int shape, Expression expr, boolean flipped, String name) {
+        report.merge(name, 1, Integer::sum);
+        return new Expression.Fused(shape, expr, flipped);
+    }
+
+    @Override
+    public Expression visitLogicalExpr(Expression.Logical expr) {
+        Expression.Logical logical = (Expression.Logical) super.visitLogicalExpr(expr);
+        TokenType type = logical.operator.type;
+        if (type != TokenType.BELOW && type != TokenType.BELOW_EQUAL
+                && type != TokenType.ABOVE && type != TokenType.ABOVE_EQUAL
+                || defined.contains("len")) {
+            return logical;
+        }
+        if (length(logical.right) && quiet(logical.left)) {
+            return fused(Expression.Fused.LENGTH_CHECK, logical, false, "length check");
+        } else if (length(logical.left) && quiet(logical.right)) {
+            return fused(Expression.Fused.LENGTH_CHECK, logical, true, "length check");
+        }
+        return logical;
+    }
+
+    private static boolean length(Expression expr) {
+        return expr instanceof Expression.FunCall call
+                && call.funId.lexeme.equals("len")
+                && call.args.size() == 1
+                && call.args.get(0) instanceof Expression.Identifier;
+    }
+
+    @Override
+    public Expression visitIfExpr(Expression.If expr) {
+        Expression cond = rewrite(expr.expr);
+        List<Expression> body = statements(expr.body);
+        if (expr.orElse == null) {
+            return new Expression.If(cond, body);
+        }
+        return new Expression.If(cond, body, statements(expr.orElse));
+    }
+
+    @Override
+    public Expression visitForExpr(Expression.For expr) {
+        depth++;
+        Expression.For loop = new Expression.For(expr.valId,
+                (Expression.Range) rewrite(expr.range), statements(expr.block));
+        depth--;
+        loop.invariants = expr.invariants;
+        rebuilt.put(expr, loop);
+        return loop;
+    }
+
+    @Override
+    public Expression visitWhileExpr(Expression.While expr) {
+        depth++;
+        Expression.While loop = new Expression.While(rewrite(expr.expr),
+                statements(expr.body));
+        depth--;
+        loop.invariants = expr.invariants;
+        rebuilt.put(expr, loop);
+        return loop;
+    }
+
+    @Override
+    public Expression visitEachExpr(Expression.Each expr) {
+        depth++;
+        Expression.Each loop = new Expression.Each(expr.targetName,
+                expr.elementName, statements(expr.body));
+        depth--;
+        loop.invariants = expr.invariants;
+        rebuilt.put(expr, loop);
+        return loop;
+    }
+
+    @Override
+    public Expression visitFunExpr(Expression.Fun expr) {
+        // the body is not run by the loop it is defined in
+        int outer = depth;
+        depth = 0;
+        Expression.Fun fun = new Expression.Fun(expr.funId, expr.args,
+                statements(expr.expressions), expr.memo);
+        depth = outer;
+        rebuilt.put(expr, fun);
+        return fun;
+    }
+
+    @Override
+    public Expression visitInlinedExpr(Expression.Inlined expr) {
+        Expression.Inlined call = (Expression.Inlined) super.visitInlinedExpr(expr);
+        inlined.add(call);
+        return call;
+    }
+
+    @Override
+    public Expression visitInvariantExpr(Expression.Invariant expr) {
+        invariants.add(expr);
+        return expr;
+    }
+}
@@ -0,0 +1,278 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import xyz.kumaraswamy.sketch.lex.Token;
+import xyz.kumaraswamy.sketch.lex.TokenType;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// moves the expressions of a loop that have no effects and
+// read nothing the loop writes out of it, like len(array) - 1,
+// this.<name> or a string built with '+'.
+//
+// an expression is still evaluated where it is the first time
+// in each run of the loop and kept for the other times, so an
+// expression that fails or is never reached behaves the same.
+// loops that call user funs or define things are left alone,
+// a fun sees the memory of the caller and can write anything
+public class Hoister extends Rewriter {
+
+    private final Set<String> defined = new HashSet<>();
+    private final List<String> report = new ArrayList<>();
+
+    public List<Expression> hoist(List<Expression> exprs) {
+        Inliner.collect(exprs, defined, new HashSet<>());
+        return rewrite(exprs);
+    }
+
+    // the loops and the expressions moved out of them
+    public List<String> report() {
+        return report;
+    }
+
+    @Override
+    public Expression visitForExpr(Expression.For expr) {
+        Hoisting hoisting = hoisting(expr.block, expr.valId.lexeme);
+        List<Expression> block = expr.block;
+        if (hoisting != null) {
+            block = hoisting.rewrite(block);
+        }
+        Expression.For loop = new Expression.For(expr.valId,
+                (Expression.Range) rewrite(expr.range), rewrite(block));
+        loop.invariants = done(hoisting, loop,
+                "for " + expr.valId.lexeme + " at line " + expr.valId.line);
+        return loop;
+    }
+
+    @Override
+    public Expression visitWhileExpr(Expression.While expr) {
+        List<Expression> body = new ArrayList<>(expr.body);
+        body.add(expr.expr);
+        Hoisting hoisting = hoisting(body, null);
+        Expression cond = expr.expr;
+        body = expr.body;
+        if (hoisting != null) {
+            cond = hoisting.rewrite(cond);
+            body = hoisting.rewrite(body);
+        }
+        Expression.While loop = new Expression.While(rewrite(cond), rewrite(body));
+        loop.invariants = done(hoisting, loop, "while " + expr.expr.visit());
+        return loop;
+    }
+
+    @Override
+    public Expression visitEachExpr(Expression.Each expr) {
+        Hoisting hoisting = hoisting(expr.body, expr.elementName.lexeme);
+        List<Expression> body = expr.body;
+        if (hoisting != null) {
+            body = hoisting.rewrite(body);
+        }
+        Expression.Each loop = new Expression.Each(expr.targetName,
+                expr.elementName, rewrite(body));
+        loop.invariants = done(hoisting, loop, "each " + expr.elementName.lexeme
+                + " at line " + expr.elementName.line);
+        return loop;
+    }
+
+    // null if the loop can write anything
+    private Hoisting hoisting(List<Expression> body, String looper) {
+        Writes writes = new Writes(defined);
+        if (looper != null) {
+            writes.names.add(looper);
+        }
+        writes.rewrite(body);
+        return writes.closed ? new Hoisting(writes) : null;
+    }
+
+    // the number of values the loop keeps
+    private int done(Hoisting hoisting, Expression loop, String name) {
+        if (hoisting == null || hoisting.indexes.isEmpty()) {
+            return 0;
+        }
+        for (Expression.Invariant invariant : hoisting.invariants) {
+            invariant.loop = loop;
+        }
+        for (String expression : hoisting.indexes.keySet()) {
+            report.add(name + ": " + expression);
+        }
+        return hoisting.indexes.size();
+    }
+
+    // the names a loop writes, including the loops in it
+    private static class Writes extends Rewriter {
+
+        private final Set<String> defined;
+
+        final Set<String> names = new HashSet<>();
+        // an element of an array is set
+        boolean arrays = false;
+        // false if it calls a user fun or defines one
+        boolean closed = true;
+
+        Writes(Set<String> defined) {
+            this.defined = defined;
+        }
+
+        @Override
+        public Expression visitValEpr(Expression.Val expr) {
+            Object get = expr.valId.get();
+            if (get instanceof Expression.PropertyIdentifier property) {
+                names.add(property.property.lexeme);
+            } else if (get instanceof Expression.ArrayAccess) {
+                arrays = true;
+            } else if (get instanceof Token token) {
+                names.add(token.lexeme);
+            }
+            return super.visitValEpr(expr);
+        }
+
+        @Override
+        public Expression visitBinaryUnaryExpr(Expression.BinaryUnary expr) {
+            names.add(expr.valId.lexeme);
+            return expr;
+        }
+
+        @Override
+        public Expression visitForExpr(Expression.For expr) {
+            names.add(expr.valId.lexeme);
+            return super.visitForExpr(expr);
+        }
+
+        @Override
+        public Expression visitEachExpr(Expression.Each expr) {
+            names.add(expr.elementName.lexeme);
+            return super.visitEachExpr(expr);
+        }
+
+        @Override
+        public Expression visitFunCallExpr(Expression.FunCall expr) {
+            // natives do not write variables
+            if (defined.contains(expr.funId.lexeme)) {
+                closed = false;
+            }
+            return super.visitFunCallExpr(expr);
+        }
+
+        @Override
+        public Expression visitInlinedExpr(Expression.Inlined expr) {
+            // the call is made only when the fun is
+            // defined again, which is not in the loop
+            rewrite(expr.body);
+            return expr;
+        }
+
+        @Override
+        public Expression visitFunExpr(Expression.Fun expr) {
+            closed = false;
+            return expr;
+        }
+
+        @Override
+        public Expression visitWithExpr(Expression.With expr) {
+            closed = false;
+            return expr;
+        }
+
+        @Override
+        public Expression visitSharedExpr(Expression.Shared expr) {
+            closed = false;
+            return expr;
+        }
+    }
+
+    // replaces the invariant expressions of one loop
+    private class Hoisting extends Rewriter {
+
+        private final Writes writes;
+
+        // an index for each expression, the same
+        // expression in the loop shares the value
+        final Map<String, Integer> indexes = new LinkedHashMap<>();
+        final List<Expression.Invariant> invariants = new ArrayList<>();
+
+        Hoisting(Writes writes) {
+            this.writes = writes;
+        }
+
+        @Override
+        Expression rewrite(Expression expr) {
+            if (!leaf(expr) && invariant(expr)) {
+                String key = expr.visit();
+                Integer index = indexes.get(key);
+                if (index == null) {
+                    index = indexes.size();
+                    indexes.put(key, index);
+                }
+                Expression.Invariant invariant = new Expression.Invariant(expr, index);
+                invariants.add(invariant);
+                return invariant;
+            }
+            return super.rewrite(expr);
+        }
+
+        // it is as cheap to read as the kept value
+        private boolean leaf(Expression expr) {
+            return expr instanceof Expression.Literal<?>
+                    || expr instanceof Expression.Identifier
+                    || expr instanceof Expression.Invariant;
+        }
+
+        private boolean invariant(Expression expr) {
+            if (expr instanceof Expression.Literal<?>
+                    || expr instanceof Expression.Invariant) {
+                return true;
+            } else if (expr instanceof Expression.Identifier identifier) {
+                return !writes.names.contains(identifier.token.lexeme);
+            } else if (expr instanceof Expression.PropertyIdentifier property) {
+                return property.name.type == TokenType.THIS
+                        && !writes.names.contains(property.property.lexeme);
+            } else if (expr instanceof Expression.Binary binary) {
+                return invariant(binary.left) && invariant(binary.right);
+            } else if (expr instanceof Expression.Logical logical) {
+                return invariant(logical.left) && invariant(logical.right);
+            } else if (expr instanceof Expression.LogicalAnd and) {
+                return invariant(and.left) && invariant(and.right);
+            } else if (expr instanceof Expression.LogicalOr or) {
+                return invariant(or.left) && invariant(or.right);
+            } else if (expr instanceof Expression.Bitwise bitwise) {
+                return invariant(bitwise.left) && invariant(bitwise.right);
+            } else if (expr instanceof Expression.Unary unary) {
+                return invariant(unary.expression);
+            } else if (expr instanceof Expression.Ternary ternary) {
+                return invariant(ternary.expr) && invariant(ternary.then)
+                        && invariant(ternary.or);
+            } else if (expr instanceof Expression.ArrayAccess access) {
+                return !writes.arrays && invariant(access.array)
+                        && invariant(access.access);
+            } else if (expr instanceof Expression.Inlined inlined) {
+                // the body has no effects, and the fun
+                // cannot be redefined inside the loop
+                return invariant(inlined.body);
+            } else if (expr instanceof Expression.FunCall call) {
+                if (!Inliner.PURE.contains(call.funId.lexeme)
+                        || defined.contains(call.funId.lexeme)) {
+                    return false;
+                }
+                for (Expression arg : call.args) {
+                    // string() reads what is in an array
+                    if (!invariant(arg) || writes.arrays && mayBeArray(arg)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            // an array literal is a new array each time
+            return false;
+        }
+
+        private boolean mayBeArray(Expression expr) {
+            return !(expr instanceof Expression.Literal<?> literal)
+                    || literal.value instanceof Object[]
+                    || literal.value instanceof NumberArray;
+        }
+    }
+}
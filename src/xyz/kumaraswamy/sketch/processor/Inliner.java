@@ -0,0 +1,245 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// puts the body of small functions in place of their calls,
+// a function can be inlined when it is defined at the top,
+// its body is a single 'return' of an expression that has
+// no effects and it does not call other user functions,
+// so it can never be recursive.
+//
+// the call is kept in the node, it is made when the name
+// is bound to something else at runtime
+public class Inliner extends Rewriter {
+
+    // natives that have no effects
+    static final Set<String> PURE = Set.of("len", "string", "int");
+
+    private final int threshold;
+
+    private final Set<String> defined = new HashSet<>();
+    private final Map<String, Expression.Fun> candidates = new HashMap<>();
+    private final List<String> report = new ArrayList<>();
+
+    public Inliner(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public List<Expression> inline(List<Expression> exprs) {
+        Set<String> repeated = new HashSet<>();
+        collect(exprs, defined, repeated);
+
+        for (Expression expr : exprs) {
+            if (expr instanceof Expression.Fun fun) {
+                String name = fun.funId.lexeme;
+                Expression body = body(fun);
+                // memo funs are called through their cache
+                if (body != null && !fun.memo && !repeated.contains(name)
+                        && size(body, defined) <= threshold) {
+                    candidates.put(name, fun);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return exprs;
+        }
+        return rewrite(exprs);
+    }
+
+    // the calls that were inlined
+    public List<String> report() {
+        return report;
+    }
+
+    // names of the functions defined anywhere, a name
+    // defined twice or by 'with' is not inlined
+    static void collect(List<Expression> exprs,
+                                Set<String> defined, Set<String> repeated) {
+        for (Expression expr : exprs) {
+            if (expr instanceof Expression.Fun fun) {
+                if (!defined.add(fun.funId.lexeme)) {
+                    repeated.add(fun.funId.lexeme);
+                }
+                collect(fun.expressions, defined, repeated);
+            } else if (expr instanceof Expression.With with) {
+                String name = with.as == null ? with.func.lexeme : with.as.lexeme;
+                defined.add(name);
+                repeated.add(name);
+            } else if (expr instanceof Expression.If branch) {
+                collect(branch.body, defined, repeated);
+                if (branch.orElse != null) {
+                    collect(branch.orElse, defined, repeated);
+                }
+            } else if (expr instanceof Expression.For loop) {
+                collect(loop.block, defined, repeated);
+            } else if (expr instanceof Expression.While loop) {
+                collect(loop.body, defined, repeated);
+            } else if (expr instanceof Expression.Each each) {
+                collect(each.body, defined, repeated);
+            }
+        }
+    }
+
+    private static Expression body(Expression.Fun fun) {
+        if (fun.expressions.size() == 1
+                && fun.expressions.get(0) instanceof Expression.Return ret) {
+            return ret.expression;
+        }
+        return null;
+    }
+
+    @Override
+    public Expression visitFunExpr(Expression.Fun expr) {
+        if (candidates.get(expr.funId.lexeme) == expr) {
+            // nothing to inline in there
+            return expr;
+        }
+        return super.visitFunExpr(expr);
+    }
+
+    @Override
+    public Expression visitFunCallExpr(Expression.FunCall expr) {
+        Expression.FunCall call = (Expression.FunCall) super.visitFunCallExpr(expr);
+        Expression.Fun fun = candidates.get(call.funId.lexeme);
+        if (fun == null || fun.args.size() != call.args.size()) {
+            return call;
+        }
+        Expression body = body(fun);
+        Map<String, Expression> args = new HashMap<>();
+        for (int i = 0; i < call.args.size(); i++) {
+            String param = fun.args.get(i).lexeme;
+            Expression arg = call.args.get(i);
+            // args and the body only read, so it does
+            // not matter when or how often they are read
+            if (size(arg, defined) == Integer.MAX_VALUE) {
+                return call;
+            }
+            if (!(arg instanceof Expression.Literal<?>)) {
+                int[] uses = new int[2];
+                uses(body, param, false, uses);
+                // an arg that is not evaluated could have
+                // failed, other args are not copied
+                if (uses[0] == uses[1] || uses[0] > 1
+                        && !(arg instanceof Expression.Identifier)) {
+                    return call;
+                }
+            }
+            args.put(param, arg);
+        }
+        report.add(call.funId.lexeme + "() at line " + call.funId.line);
+        return new Expression.Inlined(call, fun, new Substitution(args).rewrite(body));
+    }
+
+    // the number of nodes, or MAX_VALUE if
+    // the expression could have an effect
+    private static int size(Expression expr, Set<String> defined) {
+        if (expr instanceof Expression.Literal<?>
+                || expr instanceof Expression.Identifier
+                || expr instanceof Expression.PropertyIdentifier) {
+            return 1;
+        }
+        List<Expression> children;
+        if (expr instanceof Expression.Binary binary) {
+            children = List.of(binary.left, binary.right);
+        } else if (expr instanceof Expression.Logical logical) {
+            children = List.of(logical.left, logical.right);
+        } else if (expr instanceof Expression.LogicalAnd and) {
+            children = List.of(and.left, and.right);
+        } else if (expr instanceof Expression.LogicalOr or) {
+            children = List.of(or.left, or.right);
+        } else if (expr instanceof Expression.Bitwise bitwise) {
+            children = List.of(bitwise.left, bitwise.right);
+        } else if (expr instanceof Expression.Unary unary) {
+            children = List.of(unary.expression);
+        } else if (expr instanceof Expression.Ternary ternary) {
+            children = List.of(ternary.expr, ternary.then, ternary.or);
+        } else if (expr instanceof Expression.ArrayAccess access) {
+            children = List.of(access.array, access.access);
+        } else if (expr instanceof Expression.Array array) {
+            children = array.exprs;
+        } else if (expr instanceof Expression.FunCall call
+                && PURE.contains(call.funId.lexeme)
+                && !defined.contains(call.funId.lexeme)) {
+            children = call.args;
+        } else {
+            return Integer.MAX_VALUE;
+        }
+        int size = 1;
+        for (Expression child : children) {
+            int childSize = size(child, defined);
+            if (childSize == Integer.MAX_VALUE) {
+                return childSize;
+            }
+            size += childSize;
+        }
+        return size;
+    }
+
+    // counts { uses, uses that may not be evaluated }
+    private static void uses(Expression expr, String name,
+                             boolean conditional, int[] uses) {
+        if (expr instanceof Expression.Identifier identifier) {
+            if (identifier.token.lexeme.equals(name)) {
+                uses[0]++;
+                if (conditional) uses[1]++;
+            }
+        } else if (expr instanceof Expression.Binary binary) {
+            uses(binary.left, name, conditional, uses);
+            uses(binary.right, name, conditional, uses);
+        } else if (expr instanceof Expression.Logical logical) {
+            uses(logical.left, name, conditional, uses);
+            uses(logical.right, name, conditional, uses);
+        } else if (expr instanceof Expression.LogicalAnd and) {
+            uses(and.left, name, conditional, uses);
+            uses(and.right, name, true, uses);
+        } else if (expr instanceof Expression.LogicalOr or) {
+            uses(or.left, name, conditional, uses);
+            uses(or.right, name, true, uses);
+        } else if (expr instanceof Expression.Bitwise bitwise) {
+            uses(bitwise.left, name, conditional, uses);
+            uses(bitwise.right, name, conditional, uses);
+        } else if (expr instanceof Expression.Unary unary) {
+            uses(unary.expression, name, conditional, uses);
+        } else if (expr instanceof Expression.Ternary ternary) {
+            uses(ternary.expr, name, conditional, uses);
+            uses(ternary.then, name, true, uses);
+            uses(ternary.or, name, true, uses);
+        } else if (expr instanceof Expression.ArrayAccess access) {
+            uses(access.array, name, conditional, uses);
+            uses(access.access, name, conditional, uses);
+        } else if (expr instanceof Expression.Array array) {
+            for (Expression element : array.exprs) {
+                uses(element, name, conditional, uses);
+            }
+        } else if (expr instanceof Expression.FunCall call) {
+            for (Expression arg : call.args) {
+                uses(arg, name, conditional, uses);
+            }
+        }
+    }
+
+    // copies the body with params replaced by the args, every
+    // site gets its own nodes since the resolver binds them
+    private static class Substitution extends Rewriter {
+
+        private final Map<String, Expression> args;
+
+        Substitution(Map<String, Expression> args) {
+            this.args = args;
+        }
+
+        @Override
+        public Expression visitIdentifierExpr(Expression.Identifier expr) {
+            Expression arg = args.get(expr.token.lexeme);
+            if (arg != null) {
+                return new Substitution(Map.of()).rewrite(arg);
+            }
+            return new Expression.Identifier(expr.token);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import xyz.kumaraswamy.sketch.lex.TokenType;
+
+// arithmetic on integers, a result that is not one, like
+// an overflow or 7 / 2, is the double the operation on
+// the operands as doubles gives, it is thrown as the
+// value of a NotNumber so the caller leaves its long path
+final class Integers {
+
+    private Integers() {
+    }
+
+    static long arithmetic(TokenType operator, long a, long b) {
+        switch (operator) {
+            case PLUS -> {
+                long r = a + b;
+                if (((a ^ r) & (b ^ r)) < 0) {
+                    throw new Evaluator.NotNumber((double) a + (double) b);
+                }
+                return r;
+            }
+            case MINUS -> {
+                long r = a - b;
+                if (((a ^ b) & (a ^ r)) < 0) {
+                    throw new Evaluator.NotNumber((double) a - (double) b);
+                }
+                return r;
+            }
+            case STAR -> {
+                long r = a * b;
+                if (Math.multiplyHigh(a, b) != r >> 63) {
+                    throw new Evaluator.NotNumber((double) a * (double) b);
+                }
+                return r;
+            }
+            case SLASH -> {
+                if (b == 0 || a % b != 0 || a == Long.MIN_VALUE && b == -1) {
+                    throw new Evaluator.NotNumber((double) a / (double) b);
+                }
+                return a / b;
+            }
+            case PERCENTAGE -> {
+                if (b == 0) {
+                    throw new Evaluator.NotNumber((double) a % (double) b);
+                }
+                return a % b;
+            }
+        }
+        throw new IllegalStateException("Not an arithmetic operator " + operator);
+    }
+
+    // for the compiled code
+    static long divide(long a, long b) {
+        return arithmetic(TokenType.SLASH, a, b);
+    }
+
+    static long negate(long a) {
+        if (a == Long.MIN_VALUE) {
+            throw new Evaluator.NotNumber(-(double) a);
+        }
+        return -a;
+    }
+
+    // an array index, out of the bounds as it is
+    static int index(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    // the result boxed, a Long or a Double
+    static Object box(TokenType operator, long a, long b) {
+        try {
+            return arithmetic(operator, a, b);
+        } catch (Evaluator.NotNumber e) {
+            return e.value;
+        }
+    }
+}
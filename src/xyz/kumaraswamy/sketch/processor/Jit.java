@@ -0,0 +1,188 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import lombok.SneakyThrows;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+// compiles the funs that are called often to JVM bytecode,
+// loaded as hidden classes so the JVM can optimize them like
+// any other code, and unloaded when they are dropped.
+//
+// the compiled code is only called with numbers of the kinds
+// it was compiled for, a call with anything else, after a fun
+// it calls is bound to something else, or that has a result
+// that is not an integer where it expected one, drops it and
+// the fun is walked again. compiled funs have no effects
+// other than their result, so they can be walked from the start
+final class Jit {
+
+    // the compiled fun, made by the JitCompiler, the
+    // args are longs and the bits of doubles
+    interface Body {
+        Object call(long[] args);
+    }
+
+    // a call in the compiled code that has to
+    // stay bound to the fun
+    record Assumption(Expression.FunCall call, Expression.Fun fun) {
+    }
+
+    // the evaluator and its epoch the assumptions were checked
+    // for, in one object so that an evaluator on another thread
+    // running the same tree does not see half of a check
+    record Check(Evaluator owner, int epoch) {
+    }
+
+    static final class Compiled {
+
+        final Body body;
+        // of the args, 'J' a long and 'D' a double
+        final String kinds;
+        final List<Assumption> assumptions;
+
+        volatile Check check;
+
+        Compiled(Body body, String kinds, List<Assumption> assumptions,
+                 Check check) {
+            this.body = body;
+            this.kinds = kinds;
+            this.assumptions = assumptions;
+            this.check = check;
+        }
+    }
+
+    // a fun that is dropped this many
+    // times is not compiled again
+    private static final int MAX_DEOPTS = 3;
+
+    // returned when the fun has to be walked
+    static final Object MISS = new Object();
+
+    private final Evaluator eval;
+    private int threshold = 1000;
+
+    private int compiled = 0;
+    private int deopts = 0;
+
+    Jit(Evaluator eval) {
+        this.eval = eval;
+    }
+
+    // calls a fun needs to be compiled, 0 turns it off
+    void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    int threshold() {
+        return threshold;
+    }
+
+    // the result of the compiled fun, or MISS
+    Object call(Expression.Fun fun, Object[] values) {
+        Compiled code = fun.compiled;
+        if (code == null) {
+            if (fun.rejected || ++fun.calls < threshold) {
+                return MISS;
+            }
+            String kinds = kinds(values);
+            if (kinds == null) {
+                deoptimize(fun);
+                return MISS;
+            }
+            code = fun.compiled = compile(fun, kinds);
+            if (code == null) {
+                fun.rejected = true;
+                return MISS;
+            }
+        }
+        if (!valid(code)) {
+            deoptimize(fun);
+            return MISS;
+        }
+        long[] args = new long[values.length];
+        String kinds = code.kinds;
+        for (int i = 0; i < args.length; i++) {
+            Object value = values[i];
+            if (value instanceof Long integer && kinds.charAt(i) == 'J') {
+                args[i] = integer;
+            } else if (value instanceof Double number && kinds.charAt(i) == 'D') {
+                args[i] = Double.doubleToRawLongBits(number);
+            } else {
+                deoptimize(fun);
+                return MISS;
+            }
+        }
+        try {
+            return code.body.call(args);
+        } catch (ArithmeticException | Evaluator.NotNumber e) {
+            // an integer that isn't one
+            deoptimize(fun);
+            return MISS;
+        } catch (StackOverflowError e) {
+            // the compiled calls are on the java stack, the
+            // vm can make them deeper on its frames
+            deoptimize(fun);
+            return MISS;
+        }
+    }
+
+    // null if not all are numbers
+    private static String kinds(Object[] values) {
+        char[] kinds = new char[values.length];
+        for (int i = 0; i < kinds.length; i++) {
+            if (values[i] instanceof Long) {
+                kinds[i] = 'J';
+            } else if (values[i] instanceof Double) {
+                kinds[i] = 'D';
+            } else {
+                return null;
+            }
+        }
+        return new String(kinds);
+    }
+
+    private boolean valid(Compiled code) {
+        Check check = code.check;
+        if (check.owner == eval && check.epoch == eval.epoch) {
+            return true;
+        }
+        for (Assumption assumption : code.assumptions) {
+            if (eval.binding(assumption.call).function() != assumption.fun) {
+                return false;
+            }
+        }
+        code.check = new Check(eval, eval.epoch);
+        return true;
+    }
+
+    private void deoptimize(Expression.Fun fun) {
+        fun.compiled = null;
+        fun.calls = 0;
+        deopts++;
+        if (++fun.deopts == MAX_DEOPTS) {
+            fun.rejected = true;
+        }
+    }
+
+    @SneakyThrows
+    private Compiled compile(Expression.Fun fun, String kinds) {
+        JitCompiler.Compiled compiled = JitCompiler.compile(eval, fun, kinds);
+        if (compiled == null) {
+            return null;
+        }
+        MethodHandles.Lookup lookup = MethodHandles.lookup()
+                .defineHiddenClass(compiled.bytes(), true);
+        Body body = (Body) lookup.findConstructor(lookup.lookupClass(),
+                MethodType.methodType(void.class)).invoke();
+        this.compiled++;
+        return new Compiled(body, kinds, compiled.assumptions(),
+                new Check(eval, eval.epoch));
+    }
+
+    @Override
+    public String toString() {
+        return "jit [compiled=" + compiled + ", deopts=" + deopts + "]";
+    }
+}
@@ -0,0 +1,658 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import xyz.kumaraswamy.sketch.lex.Token;
+import xyz.kumaraswamy.sketch.lex.TokenType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static xyz.kumaraswamy.sketch.processor.ClassFile.*;
+
+// compiles a fun, and the funs it calls, into the static
+// methods of a class, every value is a long or a double in
+// a local of the method. it gives up on anything that could
+// be something other than a number or a boolean, so
+// the code it makes can't fail on a type, the args
+// are checked by the Jit before it is called.
+//
+// the kind of a value is known from the kinds of the args,
+// 'J' or 'D', a fun gets a method for each kinds it is
+// called with. an integer result that isn't one, like an
+// overflow, throws and the Jit walks the fun instead
+//
+// the funs it calls are assumed to stay bound to the
+// same fun, the Jit checks it when the epoch changes
+final class JitCompiler {
+
+    static final String NAME = "xyz/kumaraswamy/sketch/processor/JitCode";
+    private static final String BODY = "xyz/kumaraswamy/sketch/processor/Jit$Body";
+
+    // thrown when something can't be compiled
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Unsupported UNSUPPORTED = new Unsupported();
+    // thrown when the kind a method returns was guessed wrong
+    private static final Unsupported GUESSED = new Unsupported();
+
+    // the times a class is written again with a better guess
+    private static final int MAX_GUESSES = 8;
+
+    private record Scope(Map<String, Integer> locals, int[] whiles) {
+    }
+
+    // a method, of a fun called with args of the kinds
+    private record Signature(Expression.Fun fun, String kinds) {
+    }
+
+    private final Evaluator eval;
+    private final ClassFile file = new ClassFile(NAME, "java/lang/Object", BODY);
+    // the method name of the signatures
+    private final Map<Signature, String> methods = new LinkedHashMap<>();
+    private final List<Signature> pending = new ArrayList<>();
+    private final List<Jit.Assumption> assumptions = new ArrayList<>();
+    // the kind each method returns, a long until
+    // a return says otherwise, kept across guesses
+    private final Map<Signature, Character> returns;
+
+    // of the method being written
+    private Signature signature;
+    private ClassFile.Code code;
+    private int start;
+    private final List<Scope> scopes = new ArrayList<>();
+    private int locals;
+    // the kind of each local
+    private final char[] kinds = new char[256];
+
+    private JitCompiler(Evaluator eval, Map<Signature, Character> returns) {
+        this.eval = eval;
+        this.returns = returns;
+    }
+
+    // null if the fun can't be compiled for the args of the kinds
+    static Compiled compile(Evaluator eval, Expression.Fun fun, String kinds) {
+        Map<Signature, Character> returns = new HashMap<>();
+        for (int i = 0; i < MAX_GUESSES; i++) {
+            JitCompiler compiler = new JitCompiler(eval, returns);
+            try {
+                Signature entry = new Signature(fun, kinds);
+                String name = compiler.method(entry);
+                while (!compiler.pending.isEmpty()) {
+                    compiler.write(compiler.pending.remove(0));
+                }
+                compiler.constructor();
+                compiler.bridge(name, entry);
+                return new Compiled(compiler.file.toBytes(), compiler.assumptions);
+            } catch (Unsupported e) {
+                if (e != GUESSED) {
+                    return null;
+                }
+            } catch (IllegalStateException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    record Compiled(byte[] bytes, List<Jit.Assumption> assumptions) {
+    }
+
+    private String descriptor(Signature target) {
+        return "(" + target.kinds + ")" + returned(target);
+    }
+
+    private char returned(Signature target) {
+        return returns.getOrDefault(target, 'J');
+    }
+
+    // the name of the method of a signature, it
+    // is written later if it is not there yet
+    private String method(Signature target) {
+        String name = methods.get(target);
+        if (name == null) {
+            name = target.fun.funId.lexeme + "$" + methods.size();
+            methods.put(target, name);
+            pending.add(target);
+        }
+        return name;
+    }
+
+    private void write(Signature target) {
+        List<Expression> body = target.fun.expressions;
+        if (body.isEmpty() || !(body.get(body.size() - 1) instanceof Expression.Return)) {
+            // it could end without a value
+            throw UNSUPPORTED;
+        }
+        signature = target;
+        code = new ClassFile.Code();
+        scopes.clear();
+        locals = 0;
+
+        Scope params = beginScope();
+        List<Token> args = target.fun.args;
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i).lexeme;
+            if (params.locals.containsKey(arg)) {
+                throw UNSUPPORTED;
+            }
+            int local = allocate();
+            kinds[local] = target.kinds.charAt(i);
+            params.locals.put(arg, local);
+        }
+        start = code.label();
+        code.mark(start);
+        statements(body);
+        code.maxLocals = locals;
+        file.method(ACC_STATIC, methods.get(target), descriptor(target), code);
+    }
+
+    private void constructor() {
+        ClassFile.Code init = new ClassFile.Code();
+        init.op(ALOAD_0, 1);
+        init.op(INVOKESPECIAL, -1);
+        init.u2(file.methodRef("java/lang/Object", "<init>", "()V"));
+        init.op(RETURN, 0);
+        init.maxLocals = 1;
+        file.method(ACC_PUBLIC, "<init>", "()V", init);
+    }
+
+    // Body.call(long[]) calls the method of the fun, the
+    // doubles are passed as their bits, the result is boxed
+    private void bridge(String name, Signature entry) {
+        ClassFile.Code call = new ClassFile.Code();
+        int params = entry.kinds.length();
+        for (int i = 0; i < params; i++) {
+            call.op(ALOAD_1, 1);
+            call.op(BIPUSH, 1);
+            call.u1(i);
+            call.op(LALOAD, 0);
+            if (entry.kinds.charAt(i) == 'D') {
+                call.op(INVOKESTATIC, 0);
+                call.u2(file.methodRef("java/lang/Double", "longBitsToDouble", "(J)D"));
+            }
+        }
+        call.op(INVOKESTATIC, 2 - params * 2);
+        call.u2(file.methodRef(NAME, name, descriptor(entry)));
+        call.op(INVOKESTATIC, -1);
+        call.u2(returned(entry) == 'J'
+                ? file.methodRef("java/lang/Long", "valueOf", "(J)Ljava/lang/Long;")
+                : file.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"));
+        call.op(ARETURN, -1);
+        call.maxLocals = 2;
+        file.method(ACC_PUBLIC, "call", "([J)Ljava/lang/Object;", call);
+    }
+
+    private int allocate() {
+        int local = locals;
+        locals += 2;
+        if (locals > 255) {
+            throw UNSUPPORTED;
+        }
+        return local;
+    }
+
+    private Scope beginScope() {
+        Scope scope = new Scope(new HashMap<>(), new int[1]);
+        scopes.add(scope);
+        return scope;
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    // a name defined twice in a memory is an error
+    // at runtime, so is a name defined in a while
+    // loop, which does not get its own memory
+    private int declare(String name, char kind) {
+        Scope scope = scopes.get(scopes.size() - 1);
+        if (scope.whiles[0] > 0 || scope.locals.containsKey(name)) {
+            throw UNSUPPORTED;
+        }
+        int local = allocate();
+        kinds[local] = kind;
+        scope.locals.put(name, local);
+        return local;
+    }
+
+    // names that are not in the fun are
+    // looked up in the memory of the caller
+    private int lookup(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer local = scopes.get(i).locals.get(name);
+            if (local != null) {
+                return local;
+            }
+        }
+        throw UNSUPPORTED;
+    }
+
+    private void load(int local) {
+        code.op(kinds[local] == 'J' ? LLOAD : DLOAD, 2);
+        code.u1(local);
+    }
+
+    // a local keeps its kind, a long assigned a double
+    // would have to be one, and isn't compiled
+    private void store(int local, char kind) {
+        if (kinds[local] != kind) {
+            throw UNSUPPORTED;
+        }
+        code.op(kind == 'J' ? LSTORE : DSTORE, -2);
+        code.u1(local);
+    }
+
+    private void statements(List<Expression> exprs) {
+        for (Expression expr : exprs) {
+            statement(expr);
+        }
+    }
+
+    private void statement(Expression expr) {
+        if (expr instanceof Expression.Fused fused) {
+            expr = fused.original;
+        }
+        if (expr instanceof Expression.Val val
+                && val.valId.get() instanceof Token token) {
+            char kind = kind(val.expression);
+            number(val.expression);
+            store(val.assignment ? lookup(token.lexeme) : declare(token.lexeme, kind), kind);
+        } else if (expr instanceof Expression.Return ret) {
+            returnStatement(ret);
+        } else if (expr instanceof Expression.If branch) {
+            int orElse = code.label();
+            int end = code.label();
+            condition(branch.expr);
+            code.jump(IFEQ, orElse, -1);
+            beginScope();
+            statements(branch.body);
+            endScope();
+            code.jump(GOTO, end, 0);
+            code.mark(orElse);
+            if (branch.orElse != null) {
+                beginScope();
+                statements(branch.orElse);
+                endScope();
+            }
+            code.mark(end);
+        } else if (expr instanceof Expression.While loop) {
+            int top = code.label();
+            int end = code.label();
+            code.mark(top);
+            condition(loop.expr);
+            code.jump(IFEQ, end, -1);
+            int[] whiles = scopes.get(scopes.size() - 1).whiles;
+            whiles[0]++;
+            statements(loop.body);
+            whiles[0]--;
+            code.jump(GOTO, top, 0);
+            code.mark(end);
+        } else if (expr instanceof Expression.For loop) {
+            forStatement(loop);
+        } else {
+            throw UNSUPPORTED;
+        }
+    }
+
+    private void returnStatement(Expression.Return ret) {
+        if (ret.expression instanceof Expression.FunCall call
+                && call.caller != null) {
+            // the Evaluator makes the calls in a tail position
+            // without growing the stack, a call to itself
+            // is a jump, others could overflow the stack
+            if (target(call) != signature.fun) {
+                throw UNSUPPORTED;
+            }
+            for (Expression arg : call.args) {
+                number(arg);
+            }
+            for (int i = call.args.size() - 1; i >= 0; i--) {
+                store(i * 2, kind(call.args.get(i)));
+            }
+            code.jump(GOTO, start, 0);
+            return;
+        }
+        char kind = kind(ret.expression);
+        if (kind != returned(signature)) {
+            if (returns.containsKey(signature)) {
+                // it returns both
+                throw UNSUPPORTED;
+            }
+            returns.put(signature, kind);
+            throw GUESSED;
+        }
+        number(ret.expression);
+        code.op(kind == 'J' ? LRETURN : DRETURN, -2);
+    }
+
+    // the looper is defined in the outer memory, the test is
+    // on a counter that starts a step behind in reverse, it
+    // counts in longs when the both ends are integers
+    private void forStatement(Expression.For loop) {
+        Expression.Range range = loop.range;
+        boolean reverse = range.type.type == TokenType.RIGHT_LEFT;
+        char kind = kind(range.left) == 'J' && kind(range.right) == 'J' ? 'J' : 'D';
+        boolean integral = kind == 'J';
+        if (integral) {
+            number(range.left);
+            number(range.right);
+        } else {
+            widened(range.left);
+            widened(range.right);
+        }
+        int to = allocate();
+        int from = allocate();
+        int x = allocate();
+        kinds[to] = kinds[from] = kinds[x] = kind;
+        store(to, kind);
+        store(from, kind);
+        if (reverse) {
+            int f = from;
+            from = to;
+            to = f;
+        }
+        int looper = declare(loop.valId.lexeme, kind);
+        load(from);
+        code.op(ClassFile.DUP2, 2);
+        store(looper, kind);
+        if (reverse) {
+            code.op(integral ? LCONST_1 : DCONST_1, 2);
+            code.op(integral ? LSUB : DSUB, -2);
+        }
+        store(x, kind);
+
+        int top = code.label();
+        int exit = code.label();
+        code.mark(top);
+        load(x);
+        load(to);
+        if (reverse) {
+            code.op(integral ? LCMP : DCMPL, -3);
+            code.jump(IFLT, exit, -1);
+        } else {
+            code.op(integral ? LCMP : DCMPG, -3);
+            code.jump(IFGT, exit, -1);
+        }
+        beginScope();
+        statements(loop.block);
+        endScope();
+        load(looper);
+        code.op(integral ? LCONST_1 : DCONST_1, 2);
+        code.op(integral ? (reverse ? LSUB : LADD) : (reverse ? DSUB : DADD), -2);
+        code.op(ClassFile.DUP2, 2);
+        store(looper, kind);
+        store(x, kind);
+        code.jump(GOTO, top, 0);
+        code.mark(exit);
+    }
+
+    // the fun a call is bound to
+    private Expression.Fun target(Expression.FunCall call) {
+        Evaluator.Binding binding = eval.binding(call);
+        if (binding.function() instanceof Expression.Fun target
+                && target.params.length == call.args.size()
+                && !target.memo) {
+            assumptions.add(new Jit.Assumption(call, target));
+            return target;
+        }
+        throw UNSUPPORTED;
+    }
+
+    // the kind of the value of the expression, 'J' or 'D'
+    private char kind(Expression expr) {
+        if (expr instanceof Expression.Fused fused) {
+            expr = fused.original;
+        }
+        if (expr instanceof Expression.Invariant invariant) {
+            expr = invariant.expression;
+        }
+        if (expr instanceof Expression.Literal<?> literal) {
+            if (literal.value instanceof Long) {
+                return 'J';
+            } else if (literal.value instanceof Double) {
+                return 'D';
+            }
+        } else if (expr instanceof Expression.Identifier identifier) {
+            return kinds[lookup(identifier.token.lexeme)];
+        } else if (expr instanceof Expression.Binary binary) {
+            return kind(binary.left) == 'J' && kind(binary.right) == 'J' ? 'J' : 'D';
+        } else if (expr instanceof Expression.Unary unary
+                && unary.operator.type == TokenType.MINUS) {
+            return kind(unary.expression);
+        } else if (expr instanceof Expression.Ternary ternary) {
+            char kind = kind(ternary.then);
+            if (kind == kind(ternary.or)) {
+                return kind;
+            }
+        } else if (expr instanceof Expression.FunCall call) {
+            return returned(new Signature(target(call), kinds(call.args)));
+        } else if (expr instanceof Expression.Inlined inlined) {
+            return kind(inlined.body);
+        }
+        throw UNSUPPORTED;
+    }
+
+    private String kinds(List<Expression> args) {
+        StringBuilder kinds = new StringBuilder(args.size());
+        for (Expression arg : args) {
+            kinds.append(kind(arg));
+        }
+        return kinds.toString();
+    }
+
+    // leaves a double on the stack, a long is made one
+    private void widened(Expression expr) {
+        number(expr);
+        if (kind(expr) == 'J') {
+            code.op(L2D, 0);
+        }
+    }
+
+    // leaves a long or a double on the stack, of the kind()
+    private void number(Expression expr) {
+        if (expr instanceof Expression.Fused fused) {
+            expr = fused.original;
+        }
+        if (expr instanceof Expression.Invariant invariant) {
+            // the JVM moves it out of the loop itself
+            expr = invariant.expression;
+        }
+        if (expr instanceof Expression.Literal<?> literal
+                && literal.value instanceof Double value) {
+            if (value == 0 && Double.doubleToRawLongBits(value) == 0) {
+                code.op(DCONST_0, 2);
+            } else if (value == 1) {
+                code.op(DCONST_1, 2);
+            } else {
+                code.op(LDC2_W, 2);
+                code.u2(file.doubleConst(value));
+            }
+        } else if (expr instanceof Expression.Literal<?> literal
+                && literal.value instanceof Long value) {
+            if (value == 0 || value == 1) {
+                code.op(value == 0 ? LCONST_0 : LCONST_1, 2);
+            } else {
+                code.op(LDC2_W, 2);
+                code.u2(file.longConst(value));
+            }
+        } else if (expr instanceof Expression.Identifier identifier) {
+            load(lookup(identifier.token.lexeme));
+        } else if (expr instanceof Expression.Binary binary) {
+            if (kind(binary) == 'J') {
+                integer(binary);
+                return;
+            }
+            widened(binary.left);
+            widened(binary.right);
+            code.op(switch (binary.operator.type) {
+                case PLUS -> DADD;
+                case MINUS -> DSUB;
+                case STAR -> DMUL;
+                case SLASH -> DDIV;
+                case PERCENTAGE -> DREM;
+                default -> throw UNSUPPORTED;
+            }, -2);
+        } else if (expr instanceof Expression.Unary unary
+                && unary.operator.type == TokenType.MINUS) {
+            number(unary.expression);
+            if (kind(unary.expression) == 'J') {
+                code.op(INVOKESTATIC, 0);
+                code.u2(file.methodRef("java/lang/Math", "negateExact", "(J)J"));
+            } else {
+                code.op(DNEG, 0);
+            }
+        } else if (expr instanceof Expression.Ternary ternary) {
+            kind(ternary);
+            int or = code.label();
+            int end = code.label();
+            condition(ternary.expr);
+            code.jump(IFEQ, or, -1);
+            number(ternary.then);
+            code.jump(GOTO, end, 0);
+            code.stack(-2);
+            code.mark(or);
+            number(ternary.or);
+            code.mark(end);
+        } else if (expr instanceof Expression.FunCall call) {
+            Signature target = new Signature(target(call), kinds(call.args));
+            for (Expression arg : call.args) {
+                number(arg);
+            }
+            int args = call.args.size();
+            code.op(INVOKESTATIC, 2 - args * 2);
+            code.u2(file.methodRef(NAME, method(target), descriptor(target)));
+        } else if (expr instanceof Expression.Inlined inlined) {
+            Evaluator.Binding binding = eval.binding(inlined.call);
+            if (binding.function() != inlined.fun) {
+                throw UNSUPPORTED;
+            }
+            assumptions.add(new Jit.Assumption(inlined.call, inlined.fun));
+            number(inlined.body);
+        } else {
+            throw UNSUPPORTED;
+        }
+    }
+
+    // the exact operations throw an ArithmeticException, and a
+    // division a NotNumber, when the result is not a long
+    private void integer(Expression.Binary binary) {
+        number(binary.left);
+        number(binary.right);
+        switch (binary.operator.type) {
+            case PLUS -> exact("java/lang/Math", "addExact");
+            case MINUS -> exact("java/lang/Math", "subtractExact");
+            case STAR -> exact("java/lang/Math", "multiplyExact");
+            case SLASH -> exact("xyz/kumaraswamy/sketch/processor/Integers", "divide");
+            // throws when it is by 0
+            case PERCENTAGE -> code.op(LREM, -2);
+            default -> throw UNSUPPORTED;
+        }
+    }
+
+    private void exact(String owner, String name) {
+        code.op(INVOKESTATIC, -2);
+        code.u2(file.methodRef(owner, name, "(JJ)J"));
+    }
+
+    // leaves 1 or 0 on the stack
+    private void condition(Expression expr) {
+        if (expr instanceof Expression.Fused fused) {
+            expr = fused.original;
+        }
+        if (expr instanceof Expression.Invariant invariant) {
+            expr = invariant.expression;
+        }
+        if (expr instanceof Expression.Literal<?> literal
+                && literal.value instanceof Boolean value) {
+            code.op(value ? ICONST_1 : ICONST_0, 1);
+        } else if (expr instanceof Expression.Logical logical) {
+            compare(logical);
+        } else if (expr instanceof Expression.LogicalAnd and) {
+            shortCircuit(and.left, and.right, IFEQ);
+        } else if (expr instanceof Expression.LogicalOr or) {
+            shortCircuit(or.left, or.right, IFNE);
+        } else if (expr instanceof Expression.Unary unary
+                && unary.operator.type == TokenType.EXCLAMATION) {
+            condition(unary.expression);
+            code.op(ICONST_1, 1);
+            code.op(IXOR, -1);
+        } else {
+            throw UNSUPPORTED;
+        }
+    }
+
+    // the result of the left is kept when it decides
+    private void shortCircuit(Expression left, Expression right, int jump) {
+        int decided = code.label();
+        int end = code.label();
+        condition(left);
+        code.jump(jump, decided, -1);
+        condition(right);
+        code.jump(GOTO, end, 0);
+        code.stack(-1);
+        code.mark(decided);
+        code.op(jump == IFEQ ? ICONST_0 : ICONST_1, 1);
+        code.mark(end);
+    }
+
+    private void compare(Expression.Logical logical) {
+        // a long with a double is compared as doubles
+        boolean integral = kind(logical.left) == 'J' && kind(logical.right) == 'J';
+        if (integral) {
+            number(logical.left);
+            number(logical.right);
+        } else {
+            widened(logical.left);
+            widened(logical.right);
+        }
+        // jumps to false
+        int jump;
+        switch (logical.operator.type) {
+            case ABOVE -> {
+                code.op(integral ? LCMP : DCMPL, -3);
+                jump = IFLE;
+            }
+            case ABOVE_EQUAL -> {
+                code.op(integral ? LCMP : DCMPL, -3);
+                jump = IFLT;
+            }
+            case BELOW -> {
+                code.op(integral ? LCMP : DCMPG, -3);
+                jump = IFGE;
+            }
+            case BELOW_EQUAL -> {
+                code.op(integral ? LCMP : DCMPG, -3);
+                jump = IFGT;
+            }
+            case EQUAL_EQUAL, NOT_EQUAL -> {
+                if (integral) {
+                    code.op(LCMP, -3);
+                } else {
+                    // Double.equals(), NaN is equal to itself
+                    // and 0.0 is not equal to -0.0
+                    code.op(INVOKESTATIC, -3);
+                    code.u2(file.methodRef("java/lang/Double", "compare", "(DD)I"));
+                }
+                jump = logical.operator.type == TokenType.EQUAL_EQUAL ? IFNE : IFEQ;
+            }
+            default -> throw UNSUPPORTED;
+        }
+        int otherwise = code.label();
+        int end = code.label();
+        code.jump(jump, otherwise, -1);
+        code.op(ICONST_1, 1);
+        code.jump(GOTO, end, 0);
+        code.stack(-1);
+        code.mark(otherwise);
+        code.op(ICONST_0, 1);
+        code.mark(end);
+    }
+}
@@ -0,0 +1,109 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// results of the 'memo fun' calls by their args, the least
+// recently used result is removed when it is full
+public class Memo {
+
+    record Key(Expression.Fun fun, List<Object> args) {
+    }
+
+    // a cached null
+    private static final Object NULL = new Object();
+
+    private int capacity;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private final LinkedHashMap<Key, Object> results =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                    if (size() > capacity) {
+                        evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    public Memo(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        while (results.size() > capacity) {
+            results.remove(results.keySet().iterator().next());
+            evictions++;
+        }
+    }
+
+    // null if the call can't be cached, arrays
+    // can change after they were passed
+    static Key key(Expression.Fun fun, Object[] args) {
+        Object[] values = args;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof Object[] || args[i] instanceof NumberArray) {
+                return null;
+            } else if (args[i] instanceof Rope) {
+                // compared by the characters
+                if (values == args) {
+                    values = args.clone();
+                }
+                values[i] = Rope.flat(args[i]);
+            }
+        }
+        return new Key(fun, Arrays.asList(values));
+    }
+
+    // returns the result, or the key itself when
+    // it is not there
+    Object get(Key key) {
+        Object result = results.get(key);
+        if (result == null) {
+            misses++;
+            return key;
+        }
+        hits++;
+        return result == NULL ? null : result;
+    }
+
+    void put(Key key, Object result) {
+        if (capacity > 0) {
+            results.put(key, result == null ? NULL : result);
+        }
+    }
+
+    public void clear() {
+        results.clear();
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    @Override
+    public String toString() {
+        return "memo [size=" + results.size() + ", hits=" + hits +
+                ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+}
@@ -0,0 +1,132 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import java.util.Arrays;
+
+// an array that has only held numbers, they are kept in a
+// long[] and not boxed, a double as its bits. the first
+// element of another type moves it to an Object[], the array
+// stays the same object so the names that refer to it see
+// the change
+public final class NumberArray {
+
+    // the bits of an element that was never set, a NaN
+    // arithmetic does not make, it is read as null
+    private static final long UNSET = 0x7ff8_0000_0000_0dadL;
+
+    private long[] values;
+    // a bit for each element that is a long
+    private long[] integers;
+    private Object[] objects;
+
+    private NumberArray(int size) {
+        values = new long[size];
+        integers = new long[(size + 63) >>> 6];
+    }
+
+    // array(n), the elements are null until set
+    public static NumberArray nulls(int size) {
+        NumberArray array = new NumberArray(size);
+        Arrays.fill(array.values, UNSET);
+        return array;
+    }
+
+    // numbers(n), the elements are 0
+    public static NumberArray zeros(int size) {
+        NumberArray array = new NumberArray(size);
+        Arrays.fill(array.integers, -1L);
+        return array;
+    }
+
+    // the values are all numbers
+    static NumberArray of(Object[] numbers) {
+        NumberArray array = new NumberArray(numbers.length);
+        for (int i = 0; i < numbers.length; i++) {
+            array.set(i, numbers[i]);
+        }
+        return array;
+    }
+
+    public int length() {
+        return objects == null ? values.length : objects.length;
+    }
+
+    // false once it holds something other than numbers
+    boolean numeric() {
+        return objects == null;
+    }
+
+    // of a numeric array
+    boolean integer(int index) {
+        return (integers[index >>> 6] & 1L << index) != 0;
+    }
+
+    long longAt(int index) {
+        return values[index];
+    }
+
+    // unset() tells if it was never set
+    double doubleAt(int index) {
+        return Double.longBitsToDouble(values[index]);
+    }
+
+    boolean unset(int index) {
+        return values[index] == UNSET && !integer(index);
+    }
+
+    public Object get(int index) {
+        if (objects != null) {
+            return objects[index];
+        }
+        long value = values[index];
+        if (integer(index)) {
+            return value;
+        }
+        return value == UNSET ? null : (Object) Double.longBitsToDouble(value);
+    }
+
+    void set(int index, Object value) {
+        if (objects == null) {
+            if (value instanceof Long integer) {
+                values[index] = integer;
+                integers[index >>> 6] |= 1L << index;
+                return;
+            } else if (value instanceof Double number) {
+                values[index] = Double.doubleToRawLongBits(number);
+                integers[index >>> 6] &= ~(1L << index);
+                return;
+            }
+            objects = toArray();
+            values = null;
+            integers = null;
+        }
+        objects[index] = value;
+    }
+
+    // of a numeric array, like set() without the box
+    void setLong(int index, long value) {
+        values[index] = value;
+        integers[index >>> 6] |= 1L << index;
+    }
+
+    void setDouble(int index, double value) {
+        values[index] = Double.doubleToRawLongBits(value);
+        integers[index >>> 6] &= ~(1L << index);
+    }
+
+    // a copy of the elements, boxed
+    public Object[] toArray() {
+        if (objects != null) {
+            return objects.clone();
+        }
+        Object[] array = new Object[values.length];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = get(i);
+        }
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(objects != null ? objects : toArray());
+    }
+}
@@ -0,0 +1,121 @@
+package xyz.kumaraswamy.sketch.processor;
+
+// instructions of a Chunk, operands follow the opcode in
+// the code array, k is an index into the constants
+final class OpCode {
+
+    private OpCode() {
+    }
+
+    // k, pushes constants[k]
+    static final int CONST = 0;
+    // k, pushes the number constants[k] unboxed
+    static final int NUM = 1;
+    static final int POP = 2;
+
+    // depth, slot, k(name)
+    static final int LOAD_SLOT = 3;
+    // k(name)
+    static final int LOAD_NAME = 4;
+    // k(name), this.<name>
+    static final int LOAD_THIS = 5;
+    // k(val), assigns the value on the top, it is not popped
+    static final int STORE = 6;
+
+    // k(node), the node is used when
+    // the operands are not numbers
+    static final int ADD = 7;
+    static final int SUB = 8;
+    static final int MUL = 9;
+    static final int DIV = 10;
+    static final int MOD = 11;
+    static final int ABOVE = 12;
+    static final int BELOW = 13;
+    static final int ABOVE_EQUAL = 14;
+    static final int BELOW_EQUAL = 15;
+    static final int LOGICAL = 16;
+    static final int BITWISE = 17;
+    // k(operator)
+    static final int NEGATE = 18;
+    static final int NOT = 19;
+    // k(operator), the top has to be a boolean
+    static final int TEST = 20;
+    // k(node), the top has to be an array or a string
+    static final int INDEXABLE = 21;
+    // k(node), pops the index and the array
+    static final int INDEX = 22;
+
+    // target
+    static final int JUMP = 23;
+    // target, pops the condition
+    static final int JUMP_FALSE = 24;
+    // target, jumps keeping the top if it is false/true
+    static final int JUMP_FALSE_OR_POP = 25;
+    static final int JUMP_TRUE_OR_POP = 26;
+
+    // k(name), k(layout)
+    static final int LOWER = 27;
+    static final int UPPER = 28;
+
+    // k(for), reg
+    static final int FOR_INIT = 29;
+    // reg, exit
+    static final int FOR_TEST = 30;
+    // k(for), reg, top
+    static final int FOR_NEXT = 31;
+    // k(for), reg, top, exit, landing
+    static final int FOR_SIGNAL = 32;
+
+    // signal, landing
+    static final int RAISE = 33;
+    // landing, pops the value
+    static final int RETURN = 34;
+    // landing, pops the amount
+    static final int FORWARD = 35;
+    // target, a break is caught there
+    static final int CATCH_BREAK = 36;
+    static final int CLEAR = 37;
+    // returns the signal from the chunk
+    static final int EXIT = 38;
+
+    // k(node), walks the node
+    static final int EVAL = 39;
+    // k(node), landing
+    static final int EVAL_STATEMENT = 40;
+    // k(fun)
+    static final int DEFINE_FUN = 41;
+
+    // k(call), skip, pushes the fun, native or import that
+    // the args are given to, or for a call that cannot be
+    // made, walks it and jumps to skip
+    static final int RESOLVE = 42;
+    // k(call), args, landing
+    static final int INVOKE = 43;
+    // k(inlined), skip
+    static final int GUARD = 44;
+
+    // k, pushes the integer constants[k] unboxed
+    static final int INT = 45;
+
+    // target, the chunk ends there on a return
+    static final int CATCH_RETURN = 46;
+
+    // k(node), the top has to be an array that can be assigned
+    static final int ASSIGNABLE = 47;
+    // k(node), pops the index and the array, the value
+    // under them is assigned and is not popped
+    static final int STORE_INDEX = 48;
+    // k(val), this.<name>, the value is not popped
+    static final int STORE_THIS = 49;
+    // n, pops the n elements
+    static final int ARRAY = 50;
+
+    // k(each), reg, pushes the values it goes over
+    static final int EACH_INIT = 51;
+    // k(each), reg, exit
+    static final int EACH_NEXT = 52;
+    // reg, top, exit
+    static final int EACH_SIGNAL = 53;
+    // reg, landing, pops the values
+    static final int EACH_END = 54;
+}
@@ -0,0 +1,215 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import xyz.kumaraswamy.sketch.lex.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// folds constant expressions, simplifies arithmetic on
+// operands known to be numbers and removes the branches
+// that have a literal condition
+public class Optimizer extends Rewriter {
+
+    public List<Expression> optimize(List<Expression> exprs) {
+        return rewrite(exprs);
+    }
+
+    @Override
+    List<Expression> rewrite(List<Expression> exprs) {
+        List<Expression> rewritten = new ArrayList<>(exprs.size());
+        for (Expression expr : exprs) {
+            Expression result = rewrite(expr);
+            if (result == null) {
+                continue;
+            }
+            if (result instanceof Expression.If branch
+                    && isLiteral(branch.expr, true)
+                    && !declares(branch.body)) {
+                // if (true) { ... }, nothing is defined in
+                // its memory so the body can take its place
+                rewritten.addAll(branch.body);
+            } else {
+                rewritten.add(result);
+            }
+        }
+        return rewritten;
+    }
+
+    @Override
+    public Expression visitBinaryExpr(Expression.Binary expr) {
+        Expression left = rewrite(expr.left);
+        Expression right = rewrite(expr.right);
+        Expression.Binary binary = new Expression.Binary(left, expr.operator, right);
+
+        if (left instanceof Expression.Literal<?> a
+                && right instanceof Expression.Literal<?> b) {
+            try {
+                Object value = Evaluator.binary(binary, a.value, b.value);
+                if (value != null) {
+                    // a literal is not appended to
+                    return new Expression.Literal<>(Rope.flat(value));
+                }
+            } catch (RuntimeException e) {
+                // left for the runtime to report
+            }
+        }
+
+        // x + 0 is not simplified, -0.0 + 0 is 0.0, and x * 1.0
+        // is not either, it turns an integer x into a double
+        switch (expr.operator.type) {
+            case STAR -> {
+                if (numeric(left) && isLiteral(right, 1L)) return left;
+                if (numeric(right) && isLiteral(left, 1L)) return right;
+            }
+            case SLASH -> {
+                if (numeric(left) && isLiteral(right, 1L)) return left;
+            }
+            case MINUS -> {
+                if (numeric(left) && isLiteral(right, 0L)) return left;
+            }
+        }
+        return binary;
+    }
+
+    @Override
+    public Expression visitLogicalExpr(Expression.Logical expr) {
+        Expression left = rewrite(expr.left);
+        Expression right = rewrite(expr.right);
+        Expression.Logical logical = new Expression.Logical(left, expr.operator, right);
+
+        if (left instanceof Expression.Literal<?> a
+                && right instanceof Expression.Literal<?> b) {
+            try {
+                if (Evaluator.logical(logical, a.value, b.value) instanceof Boolean value) {
+                    return new Expression.Literal<>(value);
+                }
+            } catch (RuntimeException e) {
+                // left for the runtime to report
+            }
+        }
+        return logical;
+    }
+
+    @Override
+    public Expression visitLogicalAndExpr(Expression.LogicalAnd expr) {
+        Expression left = rewrite(expr.left);
+        Expression right = rewrite(expr.right);
+        if (isLiteral(left, false)) {
+            return left;
+        } else if (isLiteral(left, true) && isBoolean(right)) {
+            return right;
+        }
+        return new Expression.LogicalAnd(left, expr.operator, right);
+    }
+
+    @Override
+    public Expression visitLogicalOrExpr(Expression.LogicalOr expr) {
+        Expression left = rewrite(expr.left);
+        Expression right = rewrite(expr.right);
+        if (isLiteral(left, true)) {
+            return left;
+        } else if (isLiteral(left, false) && isBoolean(right)) {
+            return right;
+        }
+        return new Expression.LogicalOr(left, expr.operator, right);
+    }
+
+    @Override
+    public Expression visitBitwiseExpr(Expression.Bitwise expr) {
+        Expression left = rewrite(expr.left);
+        Expression right = rewrite(expr.right);
+        Expression.Bitwise bitwise = new Expression.Bitwise(left, expr.operator, right);
+
+        if (left instanceof Expression.Literal<?> a
+                && right instanceof Expression.Literal<?> b) {
+            try {
+                return new Expression.Literal<>(Evaluator.bitwise(bitwise, a.value, b.value));
+            } catch (RuntimeException e) {
+                // left for the runtime to report
+            }
+        }
+        return bitwise;
+    }
+
+    @Override
+    public Expression visitUnaryExpr(Expression.Unary expr) {
+        Expression expression = rewrite(expr.expression);
+        if (expression instanceof Expression.Literal<?> literal) {
+            TokenType type = expr.operator.type;
+            if (type == TokenType.MINUS && (literal.value instanceof Double
+                    || literal.value instanceof Long)) {
+                return new Expression.Literal<>(Evaluator.negative(expr.operator, literal.value));
+            } else if (type == TokenType.EXCLAMATION && literal.value instanceof Boolean value) {
+                return new Expression.Literal<>(!value);
+            }
+        }
+        return new Expression.Unary(expr.operator, expression);
+    }
+
+    @Override
+    public Expression visitTernary(Expression.Ternary expr) {
+        Expression cond = rewrite(expr.expr);
+        if (isLiteral(cond, true)) {
+            return rewrite(expr.then);
+        } else if (isLiteral(cond, false)) {
+            return rewrite(expr.or);
+        }
+        return new Expression.Ternary(cond, rewrite(expr.then), rewrite(expr.or));
+    }
+
+    @Override
+    public Expression visitIfExpr(Expression.If expr) {
+        Expression cond = rewrite(expr.expr);
+        if (isLiteral(cond, true)) {
+            return new Expression.If(cond, rewrite(expr.body));
+        } else if (isLiteral(cond, false)) {
+            if (expr.orElse == null) {
+                return null;
+            }
+            return new Expression.If(new Expression.Literal<>(true), rewrite(expr.orElse));
+        }
+        List<Expression> body = rewrite(expr.body);
+        if (expr.orElse == null) {
+            return new Expression.If(cond, body);
+        }
+        return new Expression.If(cond, body, rewrite(expr.orElse));
+    }
+
+    @Override
+    public Expression visitWhileExpr(Expression.While expr) {
+        Expression cond = rewrite(expr.expr);
+        if (isLiteral(cond, false)) {
+            return null;
+        }
+        return new Expression.While(cond, rewrite(expr.body));
+    }
+
+    private static boolean isLiteral(Expression expr, Object value) {
+        return expr instanceof Expression.Literal<?> literal
+                && value.equals(literal.value);
+    }
+
+    // a condition the other side of && or || can be
+    // replaced with, it has to be a boolean
+    private static boolean isBoolean(Expression expr) {
+        return expr instanceof Expression.Literal<?> literal
+                && literal.value instanceof Boolean
+                || expr instanceof Expression.Logical
+                || expr instanceof Expression.LogicalAnd
+                || expr instanceof Expression.LogicalOr;
+    }
+
+    // true if the expression can only be a
+    // number, or it fails on its own
+    static boolean numeric(Expression expr) {
+        if (expr instanceof Expression.Literal<?> literal) {
+            return literal.value instanceof Double || literal.value instanceof Long;
+        } else if (expr instanceof Expression.Binary binary) {
+            return binary.operator.type != TokenType.PLUS
+                    || numeric(binary.left) && numeric(binary.right);
+        } else if (expr instanceof Expression.Unary unary) {
+            return unary.operator.type == TokenType.MINUS;
+        }
+        return expr instanceof Expression.BinaryUnary;
+    }
+}
@@ -35,6 +35,8 @@ public class Parser {
     private int posCache = -1;
     private Token cache = null;
     private boolean skipExpr = false;
+    // the last expression in parentheses
+    private Expression grouped = null;
 
     public Parser(List<Token> tokens) {
         this.tokens = tokens;
@@ -80,8 +82,14 @@ public class Parser {
     }
 
     private Expression primary(Token token) {
+        if (token.type == IDENTIFIER && token.lexeme.equals("memo")
+                && peek().type == FUN) {
+            // only a keyword before 'fun', it can
+            // still name a val or a fun
+            return memoFun();
+        }
         return switch (token.type) {
-            case FUN -> fun();
+            case FUN -> fun(false);
             case IF -> ifIdentifier();
             case FOR -> forIdentifier(token);
             case WHILE -> whileIdentifier();
@@ -179,6 +187,7 @@ public class Parser {
             case LEFT_PAREN:
                 Expression expression = expr();
                 consume(TokenType.RIGHT_PAREN, "Expected ')'");
+                grouped = expression;
                 return expression;
             case LEFT_SQUARE:
                 List<Expression> array = array();
@@ -244,7 +253,7 @@ public class Parser {
         Token peek = peek();
         Expression val;
         if (peek.type == TokenType.SEMICOLON) {
-            val = new Expression.Literal<>(1);
+            val = new Expression.Literal<>(1L);
         } else {
             val = expr();
         }
@@ -331,13 +340,19 @@ public class Parser {
         return args;
     }
 
-    private Expression fun() {
+    private Expression memoFun() {
+        // memo fun <funId,(,args), {body}
+        consume(FUN, "Expected 'fun' after 'memo'");
+        return fun(true);
+    }
+
+    private Expression fun(boolean memo) {
         // fun <funId,(,args), {body}
         Token funId = consume(IDENTIFIER,
                 "Expect identifier after 'val' keyword");
         List<Token> args = funArgIdentifiers();
         List<Expression> fun = blockBody();
-        return new Expression.Fun(funId, args, fun);
+        return new Expression.Fun(funId, args, fun, memo);
     }
 
     private List<Expression> blockBody() {
@@ -438,17 +453,50 @@ public class Parser {
     private Expression logicalOperator(Expression left, Token peek) {
         Token logicalOp = next();
 
-        Expression right;
-        if (peek.matches(TokenType.LOGICAL_AND, TokenType.LOGICAL_OR)) {
-            right = expr();
-        } else {
-            right = value(next());
-            while (peek().matches(BINARY_OPERATORS)) {
-                right = parseExpressionBind(right);
+        if (peek.type == LOGICAL_OR) {
+            return new Expression.LogicalOr(left, logicalOp, expr());
+        } else if (peek.type == LOGICAL_AND) {
+            Expression right = expr();
+            if (right instanceof Expression.LogicalOr or && right != grouped) {
+                // a && b || c, && is applied first
+                return new Expression.LogicalOr(
+                        new Expression.LogicalAnd(left, logicalOp, or.left),
+                        or.operator, or.right);
             }
+            return new Expression.LogicalAnd(left, logicalOp, right);
+        }
+        if (peek.matches(BITWISE_AND, BITWISE_OR)) {
+            return expression(
+                    new Expression.Bitwise(left, logicalOp, bitwiseOperand(logicalOp)));
         }
         return expression(
-                new Expression.Logical(left, logicalOp, right));
+                new Expression.Logical(left, logicalOp, operand()));
+    }
+
+    // the right side of a comparison, a value with
+    // the binary operators that follow it
+    private Expression operand() {
+        Expression right = value(next());
+        while (peek().matches(BINARY_OPERATORS)) {
+            right = parseExpressionBind(right);
+        }
+        return right;
+    }
+
+    // the right side of & or |, the comparisons are applied
+    // before them and & before |, like x > 1 & x < 10
+    private Expression bitwiseOperand(Token operator) {
+        Expression right = operand();
+        while (peek().matches(EQUAL_EQUAL, NOT_EQUAL, ABOVE, BELOW,
+                ABOVE_EQUAL, BELOW_EQUAL)) {
+            Token comparison = next();
+            right = new Expression.Logical(right, comparison, operand());
+        }
+        while (operator.type == BITWISE_OR && peek().matches(BITWISE_AND)) {
+            Token and = next();
+            right = new Expression.Bitwise(right, and, bitwiseOperand(and));
+        }
+        return right;
     }
 
     private Expression binaryOperator(Expression left) {
@@ -0,0 +1,475 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import xyz.kumaraswamy.sketch.Sketch;
+import xyz.kumaraswamy.sketch.lex.Token;
+import xyz.kumaraswamy.sketch.lex.TokenType;
+import xyz.kumaraswamy.sketch.memory.Layout;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// binds variables to a (depth, slot) of the memory
+// they are defined in, so the Evaluator does not have
+// to look up names through the memory chain.
+//
+// scopes follow the Evaluator's lowerMemory() calls,
+// a function scope is a boundary because functions
+// see the memory of the caller, names not found
+// inside it are looked up at runtime.
+//
+// it also finds the calls in a tail position of a fun,
+// the for loops whose looper can be kept in a local,
+// and the names a fun defines and looks up, which the
+// Evaluator uses to know when the caller's memory can
+// be dropped before the call, and warns about the
+// memo funs that do more than return a value or that
+// use names which are not their own
+public class Resolver implements Expression.Visitor<Object> {
+
+    private record Scope(Layout layout, boolean function) {
+    }
+
+    private final List<Scope> scopes = new ArrayList<>();
+
+    private Expression.Fun enclosing = null;
+    // the memo fun it is in, if any, and the index
+    // of its scope, the names of the scopes from
+    // there are its own, any other is free in it
+    private Expression.Fun memo = null;
+    private int memoScope = 0;
+    // 'return' does not stop an each loop
+    private int eaches = 0;
+    // layouts of the if(s) whose else is being resolved, a
+    // name of the body found there may not be set at runtime
+    private final Set<Layout> shared = new HashSet<>();
+    // the for(s) being resolved, a loop stays counted until
+    // a name or a call in its block may see the looper
+    private final List<Expression.For> loops = new ArrayList<>();
+
+    // where the warnings go, set by the Sketch
+    private PrintStream warnings = System.err;
+
+    public Resolver(Layout global) {
+        scopes.add(new Scope(global, false));
+    }
+
+    public void setWarnings(PrintStream warnings) {
+        this.warnings = warnings;
+    }
+
+    public void resolve(List<Expression> exprs) {
+        for (Expression expr : exprs) {
+            resolve(expr);
+        }
+    }
+
+    private void resolve(Expression expr) {
+        expr.accept(this);
+    }
+
+    private Layout beginScope(boolean function) {
+        Layout layout = new Layout();
+        scopes.add(new Scope(layout, function));
+        return layout;
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private Layout current() {
+        return scopes.get(scopes.size() - 1).layout;
+    }
+
+    // returns { depth, slot } or null if
+    // it has to be looked up at runtime
+    private int[] lookup(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Scope scope = scopes.get(i);
+            int slot = scope.layout.slot(name);
+            if (slot != -1) {
+                return new int[]{scopes.size() - 1 - i, slot};
+            }
+            if (scope.function) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private void touch(String name) {
+        for (Expression.For loop : loops) {
+            if (loop.valId.lexeme.equals(name)) {
+                loop.counted = false;
+            }
+        }
+    }
+
+    // a called fun sees the memory of the caller
+    private void touchAll() {
+        for (Expression.For loop : loops) {
+            loop.counted = false;
+        }
+    }
+
+    private void declared(String name) {
+        touch(name);
+        if (enclosing != null) {
+            enclosing.declared.add(name);
+        }
+    }
+
+    // a name that may be looked up in
+    // the memory of the caller
+    private void referenced(String name, int[] bind) {
+        touch(name);
+        if (enclosing != null && (bind == null || shared.contains(
+                scopes.get(scopes.size() - 1 - bind[0]).layout))) {
+            enclosing.free.add(name);
+        }
+    }
+
+    // the results of a memo fun are cached by its args, a
+    // free name can change between calls with the same args
+    private void memoFree(Token token) {
+        if (memo == null) {
+            return;
+        }
+        for (int i = scopes.size() - 1; i >= memoScope; i--) {
+            if (scopes.get(i).layout.slot(token.lexeme) != -1) {
+                return;
+            }
+        }
+        memoWarn(token.lexeme, token);
+    }
+
+    private void memoWarn(String name, Token token) {
+        Sketch.warn(warnings, token, "memo fun " + memo.funId.lexeme + "() uses '" + name
+                + "', which is not one of its args, cached results do not see it change");
+    }
+
+    private static void markTail(List<Expression> body, Expression.Fun fun) {
+        if (body.isEmpty()) {
+            return;
+        }
+        Expression last = body.get(body.size() - 1);
+        if (last instanceof Expression.FunCall call) {
+            call.caller = fun;
+            call.discard = true;
+        } else if (last instanceof Expression.If branch) {
+            markTail(branch.body, fun);
+            if (branch.orElse != null) {
+                markTail(branch.orElse, fun);
+            }
+        }
+    }
+
+    @Override
+    public Object visitWithExpr(Expression.With expr) {
+        declared(expr.as == null ? expr.func.lexeme : expr.as.lexeme);
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expression.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryUnaryExpr(Expression.BinaryUnary expr) {
+        int[] bind = lookup(expr.valId.lexeme);
+        if (bind != null) {
+            expr.depth = bind[0];
+            expr.slot = bind[1];
+        }
+        referenced(expr.valId.lexeme, bind);
+        memoFree(expr.valId);
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpr(Expression.Unary expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Object visitLogicalExpr(Expression.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Object visitLogicalAndExpr(Expression.LogicalAnd expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Object visitLogicalOrExpr(Expression.LogicalOr expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Object visitBitwiseExpr(Expression.Bitwise expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Object visitArrayExpr(Expression.Array expr) {
+        resolve(expr.exprs);
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpr(Expression.Literal<?> expr) {
+        return null;
+    }
+
+    @Override
+    public Object visitArrayAccessExpr(Expression.ArrayAccess expr) {
+        resolve(expr.array);
+        resolve(expr.access);
+        return null;
+    }
+
+    @Override
+    public Object visitSharedExpr(Expression.Shared expr) {
+        touchAll();
+        return null;
+    }
+
+    @Override
+    public Object visitValEpr(Expression.Val expr) {
+        // value is evaluated before it is assigned
+        resolve(expr.expression);
+
+        Object get = expr.valId.get();
+        if (get instanceof Token token) {
+            if (expr.assignment) {
+                int[] bind = lookup(token.lexeme);
+                if (bind != null) {
+                    expr.depth = bind[0];
+                    expr.slot = bind[1];
+                }
+                referenced(token.lexeme, bind);
+                memoFree(token);
+            } else {
+                expr.depth = 0;
+                expr.slot = current().declare(token.lexeme);
+                declared(token.lexeme);
+            }
+        } else if (get instanceof Expression.ArrayAccess access) {
+            resolve(access);
+        } else if (get instanceof Expression.PropertyIdentifier property) {
+            touch(property.property.lexeme);
+            if (property.name.type == TokenType.THIS && memo != null) {
+                Sketch.warn(warnings, property.property, "memo fun " + memo.funId.lexeme +
+                        "() writes to 'this." + property.property.lexeme + "'");
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitTernary(Expression.Ternary expr) {
+        resolve(expr.expr);
+        resolve(expr.then);
+        resolve(expr.or);
+        return null;
+    }
+
+    @Override
+    public Object visitIfExpr(Expression.If expr) {
+        resolve(expr.expr);
+        expr.layout = beginScope(false);
+        resolve(expr.body);
+        if (expr.orElse != null) {
+            shared.add(expr.layout);
+            resolve(expr.orElse);
+            shared.remove(expr.layout);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Object visitRangeExpr(Expression.Range expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Object visitForExpr(Expression.For expr) {
+        resolve(expr.range);
+        expr.slot = current().declare(expr.valId.lexeme);
+        declared(expr.valId.lexeme);
+
+        expr.layout = beginScope(false);
+        expr.counted = true;
+        loops.add(expr);
+        resolve(expr.block);
+        loops.remove(loops.size() - 1);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Object visitWhileExpr(Expression.While expr) {
+        // while does not lower the memory
+        resolve(expr.expr);
+        resolve(expr.body);
+        return null;
+    }
+
+    @Override
+    public Object visitEachExpr(Expression.Each expr) {
+        expr.layout = beginScope(false);
+        int[] bind = lookup(expr.targetName.lexeme);
+        if (bind != null) {
+            expr.targetDepth = bind[0];
+            expr.targetSlot = bind[1];
+        }
+        referenced(expr.targetName.lexeme, bind);
+        memoFree(expr.targetName);
+        expr.slot = expr.layout.declare(expr.elementName.lexeme);
+        declared(expr.elementName.lexeme);
+        eaches++;
+        resolve(expr.body);
+        eaches--;
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Object visitFunExpr(Expression.Fun expr) {
+        declared(expr.funId.lexeme);
+        Expression.Fun outer = enclosing;
+        Expression.Fun outerMemo = memo;
+        int outerMemoScope = memoScope;
+        int outerEaches = eaches;
+        enclosing = expr;
+        if (expr.memo) {
+            memo = expr;
+            memoScope = scopes.size();
+        }
+        eaches = 0;
+        expr.declared = new HashSet<>();
+        expr.free = new HashSet<>();
+
+        Layout layout = beginScope(true);
+        int[] params = new int[expr.args.size()];
+        for (int i = 0; i < params.length; i++) {
+            String name = expr.args.get(i).lexeme;
+            params[i] = layout.declare(name);
+            declared(name);
+        }
+        expr.params = params;
+        expr.layout = layout;
+        markTail(expr.expressions, expr);
+        resolve(expr.expressions);
+        endScope();
+
+        enclosing = outer;
+        memo = outerMemo;
+        memoScope = outerMemoScope;
+        eaches = outerEaches;
+        if (outer != null) {
+            // it runs over the memory of the outer fun
+            outer.free.addAll(expr.free);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitReturnExpr(Expression.Return expr) {
+        if (enclosing != null && eaches == 0
+                && expr.expression instanceof Expression.FunCall call) {
+            call.caller = enclosing;
+        }
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Object visitBreakExpr(Expression.Break expr) {
+        return null;
+    }
+
+    @Override
+    public Object visitContinueExpr(Expression.Continue expr) {
+        return null;
+    }
+
+    @Override
+    public Object visitForwardExpr(Expression.Forward expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Object visitFunCallExpr(Expression.FunCall expr) {
+        referenced(expr.funId.lexeme, null);
+        touchAll();
+        String name = expr.funId.lexeme;
+        if (memo != null && (name.equals("print") || name.equals("printf"))) {
+            Sketch.warn(warnings, expr.funId, "memo fun " + memo.funId.lexeme +
+                    "() calls " + name + "(), which is skipped for cached results");
+        }
+        resolve(expr.args);
+        return null;
+    }
+
+    @Override
+    public Object visitInlinedExpr(Expression.Inlined expr) {
+        resolve(expr.call);
+        resolve(expr.body);
+        return null;
+    }
+
+    @Override
+    public Object visitInvariantExpr(Expression.Invariant expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Object visitFusedExpr(Expression.Fused expr) {
+        resolve(expr.original);
+        return null;
+    }
+
+    @Override
+    public Object visitIdentifierExpr(Expression.Identifier expr) {
+        int[] bind = lookup(expr.token.lexeme);
+        if (bind != null) {
+            expr.depth = bind[0];
+            expr.slot = bind[1];
+        }
+        referenced(expr.token.lexeme, bind);
+        memoFree(expr.token);
+        return null;
+    }
+
+    @Override
+    public Object visitPropertyAccessExpr(Expression.PropertyIdentifier expr) {
+        // this.<name> is looked up on the head memory
+        touch(expr.property.lexeme);
+        if (memo != null) {
+            memoWarn(expr.name.lexeme + "." + expr.property.lexeme, expr.property);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,219 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// base of the passes that run over the tree before it is
+// resolved, rebuilds every node from its rewritten children,
+// passes override the nodes they are interested in
+abstract class Rewriter implements Expression.Visitor<Expression> {
+
+    Expression rewrite(Expression expr) {
+        return expr.accept(this);
+    }
+
+    // a statement rewritten to null is removed
+    List<Expression> rewrite(List<Expression> exprs) {
+        List<Expression> rewritten = new ArrayList<>(exprs.size());
+        for (Expression expr : exprs) {
+            Expression result = rewrite(expr);
+            if (result != null) {
+                rewritten.add(result);
+            }
+        }
+        return rewritten;
+    }
+
+    @Override
+    public Expression visitWithExpr(Expression.With expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitBinaryExpr(Expression.Binary expr) {
+        return new Expression.Binary(rewrite(expr.left),
+                expr.operator, rewrite(expr.right));
+    }
+
+    @Override
+    public Expression visitBinaryUnaryExpr(Expression.BinaryUnary expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitUnaryExpr(Expression.Unary expr) {
+        return new Expression.Unary(expr.operator, rewrite(expr.expression));
+    }
+
+    @Override
+    public Expression visitLogicalExpr(Expression.Logical expr) {
+        return new Expression.Logical(rewrite(expr.left),
+                expr.operator, rewrite(expr.right));
+    }
+
+    @Override
+    public Expression visitLogicalAndExpr(Expression.LogicalAnd expr) {
+        return new Expression.LogicalAnd(rewrite(expr.left),
+                expr.operator, rewrite(expr.right));
+    }
+
+    @Override
+    public Expression visitLogicalOrExpr(Expression.LogicalOr expr) {
+        return new Expression.LogicalOr(rewrite(expr.left),
+                expr.operator, rewrite(expr.right));
+    }
+
+    @Override
+    public Expression visitBitwiseExpr(Expression.Bitwise expr) {
+        return new Expression.Bitwise(rewrite(expr.left),
+                expr.operator, rewrite(expr.right));
+    }
+
+    @Override
+    public Expression visitArrayExpr(Expression.Array expr) {
+        return new Expression.Array(rewrite(expr.exprs));
+    }
+
+    @Override
+    public Expression visitLiteralExpr(Expression.Literal<?> expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitArrayAccessExpr(Expression.ArrayAccess expr) {
+        return new Expression.ArrayAccess(rewrite(expr.array), rewrite(expr.access));
+    }
+
+    @Override
+    public Expression visitSharedExpr(Expression.Shared expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitValEpr(Expression.Val expr) {
+        Expression.Val.ValId valId = expr.valId;
+        if (valId.get() instanceof Expression.ArrayAccess access) {
+            valId = new Expression.Val.ValId(rewrite(access));
+        }
+        return new Expression.Val(expr.datatype, expr.assignment,
+                valId, rewrite(expr.expression));
+    }
+
+    @Override
+    public Expression visitTernary(Expression.Ternary expr) {
+        return new Expression.Ternary(rewrite(expr.expr),
+                rewrite(expr.then), rewrite(expr.or));
+    }
+
+    @Override
+    public Expression visitIfExpr(Expression.If expr) {
+        Expression cond = rewrite(expr.expr);
+        List<Expression> body = rewrite(expr.body);
+        if (expr.orElse == null) {
+            return new Expression.If(cond, body);
+        }
+        return new Expression.If(cond, body, rewrite(expr.orElse));
+    }
+
+    @Override
+    public Expression visitRangeExpr(Expression.Range expr) {
+        return new Expression.Range(expr.type,
+                rewrite(expr.left), rewrite(expr.right));
+    }
+
+    @Override
+    public Expression visitForExpr(Expression.For expr) {
+        return new Expression.For(expr.valId,
+                (Expression.Range) rewrite(expr.range), rewrite(expr.block));
+    }
+
+    @Override
+    public Expression visitWhileExpr(Expression.While expr) {
+        return new Expression.While(rewrite(expr.expr), rewrite(expr.body));
+    }
+
+    @Override
+    public Expression visitEachExpr(Expression.Each expr) {
+        return new Expression.Each(expr.targetName,
+                expr.elementName, rewrite(expr.body));
+    }
+
+    @Override
+    public Expression visitFunExpr(Expression.Fun expr) {
+        // the node is kept, calls that were
+        // inlined are guarded by its identity
+        expr.expressions = rewrite(expr.expressions);
+        return expr;
+    }
+
+    @Override
+    public Expression visitReturnExpr(Expression.Return expr) {
+        return new Expression.Return(rewrite(expr.expression));
+    }
+
+    @Override
+    public Expression visitBreakExpr(Expression.Break expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitContinueExpr(Expression.Continue expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitForwardExpr(Expression.Forward expr) {
+        return new Expression.Forward(rewrite(expr.expression));
+    }
+
+    @Override
+    public Expression visitFunCallExpr(Expression.FunCall expr) {
+        return new Expression.FunCall(expr.funId, rewrite(expr.args));
+    }
+
+    @Override
+    public Expression visitInlinedExpr(Expression.Inlined expr) {
+        return new Expression.Inlined((Expression.FunCall) rewrite(expr.call),
+                expr.fun, rewrite(expr.body));
+    }
+
+    @Override
+    public Expression visitInvariantExpr(Expression.Invariant expr) {
+        // the loop it is kept for refers to this node
+        return expr;
+    }
+
+    @Override
+    public Expression visitFusedExpr(Expression.Fused expr) {
+        // the shape may not hold once it is rewritten
+        return rewrite(expr.original);
+    }
+
+    @Override
+    public Expression visitIdentifierExpr(Expression.Identifier expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitPropertyAccessExpr(Expression.PropertyIdentifier expr) {
+        return expr;
+    }
+
+    // true if the statements define something in the
+    // memory they are evaluated in
+    static boolean declares(List<Expression> exprs) {
+        for (Expression expr : exprs) {
+            if (expr instanceof Expression.Val val && !val.assignment
+                    || expr instanceof Expression.For
+                    || expr instanceof Expression.Fun
+                    || expr instanceof Expression.With) {
+                return true;
+            }
+            // while does not lower the memory
+            if (expr instanceof Expression.While loop && declares(loop.body)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,77 @@
+package xyz.kumaraswamy.sketch.processor;
+
+// a string made with '+', the characters are appended to a
+// builder shared by the ropes made from each other, so
+// s = s + x in a loop does not copy s every time.
+//
+// a rope is the first 'length' characters of the builder,
+// it is made a String only when it is indexed, measured,
+// compared or printed, and that String is kept
+public final class Rope implements CharSequence {
+
+    // shorter strings are not worth a builder
+    static final int MIN_LENGTH = 64;
+
+    private final StringBuilder builder;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder builder) {
+        this.builder = builder;
+        this.length = builder.length();
+    }
+
+    // left + right, one of them is a string or a rope
+    static Object concat(Object left, Object right) {
+        if (left instanceof Rope rope) {
+            return rope.append(String.valueOf(right));
+        }
+        String first = String.valueOf(left);
+        String second = String.valueOf(right);
+        int size = first.length() + second.length();
+        if (size < MIN_LENGTH) {
+            return first + second;
+        }
+        StringBuilder builder = new StringBuilder(size * 2);
+        return new Rope(builder.append(first).append(second));
+    }
+
+    private Rope append(String value) {
+        if (builder.length() != length) {
+            // another rope was made from this one, the
+            // builder has its characters after ours
+            StringBuilder copy = new StringBuilder((length + value.length()) * 2);
+            return new Rope(copy.append(builder, 0, length).append(value));
+        }
+        return new Rope(builder.append(value));
+    }
+
+    // the value with ropes made Strings, for the
+    // code that only knows of strings
+    public static Object flat(Object value) {
+        return value instanceof Rope rope ? rope.toString() : value;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            flat = builder.substring(0, length);
+        }
+        return flat;
+    }
+}
@@ -0,0 +1,81 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import xyz.kumaraswamy.sketch.lex.TokenType;
+
+// Binary and Logical nodes start UNINITIALIZED, after a few
+// executions with the same operand types they specialize
+// to one of these, if the types change later, they
+// stay GENERIC. an overflow of the longs, or a division
+// that is not exact, is not a change of the types
+enum Specialization {
+    UNINITIALIZED,
+    GENERIC,
+
+    DOUBLE_ADD, DOUBLE_SUB, DOUBLE_MUL, DOUBLE_DIV, DOUBLE_MOD,
+    LONG_ADD, LONG_SUB, LONG_MUL, LONG_DIV, LONG_MOD,
+    STRING_CONCAT,
+
+    DOUBLE_ABOVE, DOUBLE_BELOW, DOUBLE_ABOVE_EQUAL, DOUBLE_BELOW_EQUAL,
+    LONG_ABOVE, LONG_BELOW, LONG_ABOVE_EQUAL, LONG_BELOW_EQUAL;
+
+    // executions with the same types
+    // before a node is specialized
+    static final int THRESHOLD = 3;
+
+    static Specialization of(TokenType operator, Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            return switch (operator) {
+                case PLUS -> LONG_ADD;
+                case MINUS -> LONG_SUB;
+                case STAR -> LONG_MUL;
+                case SLASH -> LONG_DIV;
+                case PERCENTAGE -> LONG_MOD;
+
+                case ABOVE -> LONG_ABOVE;
+                case BELOW -> LONG_BELOW;
+                case ABOVE_EQUAL -> LONG_ABOVE_EQUAL;
+                case BELOW_EQUAL -> LONG_BELOW_EQUAL;
+                default -> GENERIC;
+            };
+        }
+        // a long with a double is made a double
+        if ((left instanceof Double || left instanceof Long)
+                && (right instanceof Double || right instanceof Long)) {
+            return switch (operator) {
+                case PLUS -> DOUBLE_ADD;
+                case MINUS -> DOUBLE_SUB;
+                case STAR -> DOUBLE_MUL;
+                case SLASH -> DOUBLE_DIV;
+                case PERCENTAGE -> DOUBLE_MOD;
+
+                case ABOVE -> DOUBLE_ABOVE;
+                case BELOW -> DOUBLE_BELOW;
+                case ABOVE_EQUAL -> DOUBLE_ABOVE_EQUAL;
+                case BELOW_EQUAL -> DOUBLE_BELOW_EQUAL;
+                default -> GENERIC;
+            };
+        }
+        if (operator == TokenType.PLUS
+                && (left instanceof CharSequence || right instanceof CharSequence)) {
+            return STRING_CONCAT;
+        }
+        return GENERIC;
+    }
+
+    // on doubles, the operands can be longs
+    boolean doubles() {
+        return switch (this) {
+            case DOUBLE_ADD, DOUBLE_SUB, DOUBLE_MUL, DOUBLE_DIV, DOUBLE_MOD,
+                    DOUBLE_ABOVE, DOUBLE_BELOW, DOUBLE_ABOVE_EQUAL, DOUBLE_BELOW_EQUAL -> true;
+            default -> false;
+        };
+    }
+
+    boolean longs() {
+        return switch (this) {
+            case LONG_ADD, LONG_SUB, LONG_MUL, LONG_DIV, LONG_MOD,
+                    LONG_ABOVE, LONG_BELOW, LONG_ABOVE_EQUAL, LONG_BELOW_EQUAL -> true;
+            default -> false;
+        };
+    }
+}
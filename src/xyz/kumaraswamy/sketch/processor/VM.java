@@ -0,0 +1,975 @@
+package xyz.kumaraswamy.sketch.processor;
+
+import xyz.kumaraswamy.sketch.lex.Token;
+import xyz.kumaraswamy.sketch.lex.TokenType;
+import xyz.kumaraswamy.sketch.memory.Layout;
+import xyz.kumaraswamy.sketch.memory.Memory;
+import xyz.kumaraswamy.sketch.nativs.Native;
+import xyz.kumaraswamy.sketch.nativs.sketch.Imported;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static xyz.kumaraswamy.sketch.processor.OpCode.*;
+
+// runs the statements as compiled Chunk(s) instead of walking
+// them, it works on the memory of the Evaluator, so the
+// both can call each other, fun bodies are compiled on
+// their first call and calls go through Evaluator.invoke()
+public class VM {
+
+    private static final Evaluator.Signal[] SIGNALS = Evaluator.Signal.values();
+    // a value on the stack that is unboxed in nums[]
+    private static final Object NUMBER = new Object();
+    // and one in ints[]
+    private static final Object INTEGER = new Object();
+    private static final double[] NO_REGS = new double[0];
+    private static final long[] NO_COUNTS = new long[0];
+    private static final Memory[] NO_OUTERS = new Memory[0];
+
+    private final Evaluator eval;
+
+    // the values of all the running chunks, each
+    // one uses the part from its base
+    private Object[] stack = new Object[256];
+    private double[] nums = new double[256];
+    private long[] ints = new long[256];
+    private int top = 0;
+
+    // the calls waiting for the funs they called, the
+    // objects are reused by the calls made after them
+    private Frame[] frames = new Frame[64];
+    private int depth = 0;
+    private int maxDepth = 1_000_000;
+
+    public VM(Evaluator eval) {
+        this.eval = eval;
+    }
+
+    // the most calls that can wait at a time, they do not
+    // use the java stack, the Evaluator's calls still do
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    public void run(List<Expression> program) {
+        // an error may have left it anywhere
+        top = 0;
+        depth = 0;
+        execute(Compiler.program(program));
+    }
+
+    // the value of the return that ended the script, or null
+    Object run(Chunk script) {
+        top = 0;
+        depth = 0;
+        if (execute(script) == Evaluator.Signal.RETURN) {
+            Object result = eval.returned;
+            eval.returned = null;
+            return result;
+        }
+        return null;
+    }
+
+    Evaluator.Signal execute(Expression.Fun fun) {
+        return execute(chunk(fun));
+    }
+
+    private static Chunk chunk(Expression.Fun fun) {
+        Chunk chunk = fun.chunk;
+        if (chunk == null) {
+            fun.chunk = chunk = Compiler.fun(fun);
+        }
+        return chunk;
+    }
+
+    // the caller of a fun run by the loop
+    private void save(Chunk chunk, int base, int sp, int pc,
+                      double[] regs, long[] counts, Memory[] outers) {
+        if (depth == maxDepth) {
+            throw new RuntimeError("Calls more than " + maxDepth + " deep");
+        }
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+        Frame frame = frames[depth];
+        if (frame == null) {
+            frames[depth] = frame = new Frame();
+        }
+        depth++;
+        frame.chunk = chunk;
+        frame.base = base;
+        frame.sp = sp;
+        frame.pc = pc;
+        frame.regs = regs;
+        frame.counts = counts;
+        frame.outers = outers;
+        frame.discard = false;
+    }
+
+    private Evaluator.Signal execute(Chunk chunk) {
+        // the frames below are of the calls
+        // made out of this loop, by the Evaluator
+        int entry = depth;
+        // the caller that is gone back to,
+        // null when a chunk is started
+        Frame resume = null;
+        enter:
+        for (; ; ) {
+            int[] code = chunk.code;
+            Object[] k = chunk.constants;
+            double[] numbers = chunk.numbers;
+            long[] integers = chunk.integers;
+
+            int base, sp, pc;
+            // x, to and step of each for loop, the
+            // loops on integers count in counts[]
+            double[] regs;
+            long[] counts;
+            Memory[] outers;
+            if (resume == null) {
+                base = top;
+                if (base + chunk.stack > stack.length) {
+                    int size = Math.max(stack.length * 2, base + chunk.stack);
+                    stack = Arrays.copyOf(stack, size);
+                    nums = Arrays.copyOf(nums, size);
+                    ints = Arrays.copyOf(ints, size);
+                }
+                sp = base;
+                pc = 0;
+                regs = chunk.loops == 0 ? NO_REGS : new double[chunk.loops * 3];
+                counts = chunk.loops == 0 ? NO_COUNTS : new long[chunk.loops * 3];
+                outers = chunk.loops == 0 ? NO_OUTERS : new Memory[chunk.loops];
+            } else {
+                base = resume.base;
+                sp = resume.sp;
+                pc = resume.pc;
+                regs = resume.regs;
+                counts = resume.counts;
+                outers = resume.outers;
+            }
+            top = base + chunk.stack;
+            Object[] stack = this.stack;
+            double[] nums = this.nums;
+            long[] ints = this.ints;
+            if (resume != null) {
+                push(stack, nums, ints, sp++, resume.result);
+                resume.clear();
+                resume = null;
+            }
+
+            Evaluator.Signal signal = null;
+            for (; ; ) {
+                switch (code[pc++]) {
+                    case CONST -> stack[sp++] = k[code[pc++]];
+                    case NUM -> {
+                        stack[sp] = NUMBER;
+                        nums[sp++] = numbers[code[pc++]];
+                    }
+                    case INT -> {
+                        stack[sp] = INTEGER;
+                        ints[sp++] = integers[code[pc++]];
+                    }
+                    case POP -> stack[--sp] = null;
+                    case LOAD_SLOT -> {
+                        int depth = code[pc++];
+                        int slot = code[pc++];
+                        Memory frame = eval.memory.at(depth);
+                        if (frame.hasDouble(slot)) {
+                            stack[sp] = NUMBER;
+                            nums[sp++] = frame.getDouble(slot);
+                            pc++;
+                        } else if (frame.hasLong(slot)) {
+                            stack[sp] = INTEGER;
+                            ints[sp++] = frame.getLong(slot);
+                            pc++;
+                        } else {
+                            push(stack, nums, ints, sp++, eval.memory.getAt(depth, slot, (String) k[code[pc++]]));
+                        }
+                    }
+                    case LOAD_NAME -> push(stack, nums, ints, sp++, eval.memory.getVal((String) k[code[pc++]]));
+                    case LOAD_THIS -> push(stack, nums, ints, sp++, eval.headMemory.getVal((String) k[code[pc++]]));
+                    case STORE -> {
+                        Expression.Val val = (Expression.Val) k[code[pc++]];
+                        Token token = (Token) val.valId.get();
+                        Object kind = stack[sp - 1];
+                        if (kind != NUMBER && kind != INTEGER || val.slot == -1) {
+                            eval.assignVal(val, value(stack, nums, ints, sp - 1), token);
+                        } else if (kind == INTEGER) {
+                            if (val.assignment) {
+                                eval.memory.setLongAt(val.depth, val.slot, token.lexeme, ints[sp - 1]);
+                            } else {
+                                eval.memory.defineLongAt(val.slot, token.lexeme, ints[sp - 1]);
+                            }
+                        } else if (val.assignment) {
+                            eval.memory.setDoubleAt(val.depth, val.slot, token.lexeme, nums[sp - 1]);
+                        } else {
+                            eval.memory.defineDoubleAt(val.slot, token.lexeme, nums[sp - 1]);
+                        }
+                    }
+                    case ADD -> {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a == NUMBER && b == NUMBER) {
+                            nums[sp - 1] += nums[sp];
+                        } else if (a == INTEGER && b == INTEGER) {
+                            arithmetic(TokenType.PLUS, stack, nums, ints, sp - 1);
+                        } else if (numeric(a) && numeric(b)) {
+                            nums[sp - 1] = widen(stack, nums, ints, sp - 1) + widen(stack, nums, ints, sp);
+                            stack[sp - 1] = NUMBER;
+                        } else {
+                            stack[sp - 1] = Evaluator.binary((Expression.Binary) k[code[pc]],
+                                    value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        }
+                        stack[sp] = null;
+                        pc++;
+                    }
+                    case SUB -> {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a == NUMBER && b == NUMBER) {
+                            nums[sp - 1] -= nums[sp];
+                        } else if (a == INTEGER && b == INTEGER) {
+                            arithmetic(TokenType.MINUS, stack, nums, ints, sp - 1);
+                        } else if (numeric(a) && numeric(b)) {
+                            nums[sp - 1] = widen(stack, nums, ints, sp - 1) - widen(stack, nums, ints, sp);
+                            stack[sp - 1] = NUMBER;
+                        } else {
+                            stack[sp - 1] = Evaluator.binary((Expression.Binary) k[code[pc]],
+                                    value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        }
+                        stack[sp] = null;
+                        pc++;
+                    }
+                    case MUL -> {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a == NUMBER && b == NUMBER) {
+                            nums[sp - 1] *= nums[sp];
+                        } else if (a == INTEGER && b == INTEGER) {
+                            arithmetic(TokenType.STAR, stack, nums, ints, sp - 1);
+                        } else if (numeric(a) && numeric(b)) {
+                            nums[sp - 1] = widen(stack, nums, ints, sp - 1) * widen(stack, nums, ints, sp);
+                            stack[sp - 1] = NUMBER;
+                        } else {
+                            stack[sp - 1] = Evaluator.binary((Expression.Binary) k[code[pc]],
+                                    value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        }
+                        stack[sp] = null;
+                        pc++;
+                    }
+                    case DIV -> {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a == NUMBER && b == NUMBER) {
+                            nums[sp - 1] /= nums[sp];
+                        } else if (a == INTEGER && b == INTEGER) {
+                            arithmetic(TokenType.SLASH, stack, nums, ints, sp - 1);
+                        } else if (numeric(a) && numeric(b)) {
+                            nums[sp - 1] = widen(stack, nums, ints, sp - 1) / widen(stack, nums, ints, sp);
+                            stack[sp - 1] = NUMBER;
+                        } else {
+                            stack[sp - 1] = Evaluator.binary((Expression.Binary) k[code[pc]],
+                                    value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        }
+                        stack[sp] = null;
+                        pc++;
+                    }
+                    case MOD -> {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a == NUMBER && b == NUMBER) {
+                            nums[sp - 1] %= nums[sp];
+                        } else if (a == INTEGER && b == INTEGER) {
+                            arithmetic(TokenType.PERCENTAGE, stack, nums, ints, sp - 1);
+                        } else if (numeric(a) && numeric(b)) {
+                            nums[sp - 1] = widen(stack, nums, ints, sp - 1) % widen(stack, nums, ints, sp);
+                            stack[sp - 1] = NUMBER;
+                        } else {
+                            stack[sp - 1] = Evaluator.binary((Expression.Binary) k[code[pc]],
+                                    value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        }
+                        stack[sp] = null;
+                        pc++;
+                    }
+                    case ABOVE -> {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a == NUMBER && b == NUMBER) {
+                            stack[sp - 1] = nums[sp - 1] > nums[sp];
+                        } else if (a == INTEGER && b == INTEGER) {
+                            stack[sp - 1] = ints[sp - 1] > ints[sp];
+                        } else if (numeric(a) && numeric(b)) {
+                            stack[sp - 1] = widen(stack, nums, ints, sp - 1) > widen(stack, nums, ints, sp);
+                        } else {
+                            stack[sp - 1] = Evaluator.logical((Expression.Logical) k[code[pc]],
+                                    value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        }
+                        stack[sp] = null;
+                        pc++;
+                    }
+                    case BELOW -> {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a == NUMBER && b == NUMBER) {
+                            stack[sp - 1] = nums[sp - 1] < nums[sp];
+                        } else if (a == INTEGER && b == INTEGER) {
+                            stack[sp - 1] = ints[sp - 1] < ints[sp];
+                        } else if (numeric(a) && numeric(b)) {
+                            stack[sp - 1] = widen(stack, nums, ints, sp - 1) < widen(stack, nums, ints, sp);
+                        } else {
+                            stack[sp - 1] = Evaluator.logical((Expression.Logical) k[code[pc]],
+                                    value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        }
+                        stack[sp] = null;
+                        pc++;
+                    }
+                    case ABOVE_EQUAL -> {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a == NUMBER && b == NUMBER) {
+                            stack[sp - 1] = nums[sp - 1] >= nums[sp];
+                        } else if (a == INTEGER && b == INTEGER) {
+                            stack[sp - 1] = ints[sp - 1] >= ints[sp];
+                        } else if (numeric(a) && numeric(b)) {
+                            stack[sp - 1] = widen(stack, nums, ints, sp - 1) >= widen(stack, nums, ints, sp);
+                        } else {
+                            stack[sp - 1] = Evaluator.logical((Expression.Logical) k[code[pc]],
+                                    value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        }
+                        stack[sp] = null;
+                        pc++;
+                    }
+                    case BELOW_EQUAL -> {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a == NUMBER && b == NUMBER) {
+                            stack[sp - 1] = nums[sp - 1] <= nums[sp];
+                        } else if (a == INTEGER && b == INTEGER) {
+                            stack[sp - 1] = ints[sp - 1] <= ints[sp];
+                        } else if (numeric(a) && numeric(b)) {
+                            stack[sp - 1] = widen(stack, nums, ints, sp - 1) <= widen(stack, nums, ints, sp);
+                        } else {
+                            stack[sp - 1] = Evaluator.logical((Expression.Logical) k[code[pc]],
+                                    value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        }
+                        stack[sp] = null;
+                        pc++;
+                    }
+                    case LOGICAL -> {
+                        sp--;
+                        stack[sp - 1] = Evaluator.logical((Expression.Logical) k[code[pc++]],
+                                value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        stack[sp] = null;
+                    }
+                    case BITWISE -> {
+                        sp--;
+                        stack[sp - 1] = Evaluator.bitwise((Expression.Bitwise) k[code[pc++]],
+                                value(stack, nums, ints, sp - 1), value(stack, nums, ints, sp));
+                        stack[sp] = null;
+                    }
+                    case NEGATE -> {
+                        Token operator = (Token) k[code[pc++]];
+                        if (stack[sp - 1] == NUMBER) {
+                            nums[sp - 1] = -nums[sp - 1];
+                        } else if (stack[sp - 1] == INTEGER && ints[sp - 1] != Long.MIN_VALUE) {
+                            ints[sp - 1] = -ints[sp - 1];
+                        } else {
+                            push(stack, nums, ints, sp - 1, Evaluator.negative(operator,
+                                    value(stack, nums, ints, sp - 1)));
+                        }
+                    }
+                    case NOT -> stack[sp - 1] = !Evaluator.truthy(value(stack, nums, ints, sp - 1));
+                    case TEST -> {
+                        Token operator = (Token) k[code[pc++]];
+                        if (!(stack[sp - 1] instanceof Boolean)) {
+                            Evaluator.cannotApplyOperator(operator);
+                        }
+                    }
+                    case INDEXABLE -> {
+                        Object array = value(stack, nums, ints, sp - 1);
+                        if (!(array instanceof Object[] || array instanceof NumberArray
+                                || array instanceof CharSequence)) {
+                            Expression.ArrayAccess access = (Expression.ArrayAccess) k[code[pc]];
+                            throw new RuntimeError("\"" + access.array + "\"" + " is not an valArray");
+                        }
+                        pc++;
+                    }
+                    case INDEX -> {
+                        pc++;
+                        int index = index(stack, nums, ints, --sp);
+                        stack[sp] = null;
+                        Object array = stack[sp - 1];
+                        if (array instanceof NumberArray elements) {
+                            push(stack, nums, ints, sp - 1, elements.get(index));
+                        } else {
+                            push(stack, nums, ints, sp - 1, array instanceof Object[] objects
+                                    ? objects[index]
+                                    : (Object) ((CharSequence) array).charAt(index));
+                        }
+                    }
+                    case ASSIGNABLE -> {
+                        Object array = value(stack, nums, ints, sp - 1);
+                        if (!(array instanceof Object[] || array instanceof NumberArray)) {
+                            throw new RuntimeError("\"" + array + "\"" + " is not an array");
+                        }
+                        pc++;
+                    }
+                    case STORE_INDEX -> {
+                        pc++;
+                        int index = index(stack, nums, ints, --sp);
+                        Object array = stack[--sp];
+                        stack[sp] = stack[sp + 1] = null;
+                        Object val = value(stack, nums, ints, sp - 1);
+                        if (array instanceof NumberArray elements) {
+                            elements.set(index, val);
+                        } else {
+                            ((Object[]) array)[index] = val;
+                        }
+                    }
+                    case STORE_THIS -> {
+                        Expression.Val val = (Expression.Val) k[code[pc++]];
+                        Object value = value(stack, nums, ints, sp - 1);
+                        Token name = ((Expression.PropertyIdentifier) val.valId.get()).property;
+                        Executor.onSuperMemory(eval, () -> eval.assignVal(val, value, name));
+                    }
+                    case ARRAY -> {
+                        int n = code[pc++];
+                        Object[] vals = new Object[n];
+                        // numbers are kept unboxed
+                        boolean unboxed = true;
+                        sp -= n;
+                        for (int i = 0; i < n; i++) {
+                            Object val = value(stack, nums, ints, sp + i);
+                            unboxed &= val instanceof Double || val instanceof Long;
+                            vals[i] = val;
+                            stack[sp + i] = null;
+                        }
+                        stack[sp++] = unboxed ? NumberArray.of(vals) : vals;
+                    }
+                    case JUMP -> pc = code[pc];
+                    case JUMP_FALSE -> {
+                        int target = code[pc++];
+                        if (!Evaluator.truthy(value(stack, nums, ints, --sp))) {
+                            pc = target;
+                        }
+                        stack[sp] = null;
+                    }
+                    case JUMP_FALSE_OR_POP -> {
+                        if ((Boolean) stack[sp - 1]) {
+                            sp--;
+                            pc++;
+                        } else {
+                            pc = code[pc];
+                        }
+                    }
+                    case JUMP_TRUE_OR_POP -> {
+                        if ((Boolean) stack[sp - 1]) {
+                            pc = code[pc];
+                        } else {
+                            sp--;
+                            pc++;
+                        }
+                    }
+                    case LOWER -> {
+                        String name = (String) k[code[pc++]];
+                        eval.lowerMemory(name, (Layout) k[code[pc++]]);
+                    }
+                    case UPPER -> eval.upperMemory();
+                    case FOR_INIT -> {
+                        Expression.For loop = (Expression.For) k[code[pc++]];
+                        int reg = code[pc++];
+                        Object to = value(stack, nums, ints, --sp);
+                        Object from = value(stack, nums, ints, --sp);
+                        stack[sp] = stack[sp + 1] = null;
+                        Expression.Range range = loop.range;
+                        if (!((from instanceof Double || from instanceof Long)
+                                && (to instanceof Double || to instanceof Long))) {
+                            Evaluator.cannotApplyOperator(range.type);
+                        }
+                        boolean reverse = range.type.type == TokenType.RIGHT_LEFT;
+                        Memory outer = eval.memory;
+                        outers[reg] = outer;
+                        if (from instanceof Long && to instanceof Long) {
+                            long start = (long) (reverse ? to : from);
+                            outer.defineLongAt(loop.slot, loop.valId.lexeme, start);
+                            counts[reg * 3] = reverse ? start - 1 : start;
+                            counts[reg * 3 + 1] = (long) (reverse ? from : to);
+                            counts[reg * 3 + 2] = reverse ? -1 : 1;
+                            // the double step tells the loop is on integers
+                            regs[reg * 3 + 2] = 0;
+                        } else {
+                            double start = ((Number) (reverse ? to : from)).doubleValue();
+                            // the looper stays unboxed in the outer memory
+                            outer.defineDoubleAt(loop.slot, loop.valId.lexeme, start);
+                            regs[reg * 3] = reverse ? start - 1 : start;
+                            regs[reg * 3 + 1] = ((Number) (reverse ? from : to)).doubleValue();
+                            regs[reg * 3 + 2] = reverse ? -1 : 1;
+                        }
+                        eval.lowerMemory("for loop", loop.layout);
+                    }
+                    case FOR_TEST -> {
+                        int reg = code[pc++] * 3;
+                        double step = regs[reg + 2];
+                        boolean more;
+                        if (step == 0) {
+                            long x = counts[reg];
+                            more = counts[reg + 2] > 0 ? x <= counts[reg + 1] : x >= counts[reg + 1];
+                        } else {
+                            double x = regs[reg];
+                            more = step > 0 ? x <= regs[reg + 1] : x >= regs[reg + 1];
+                        }
+                        if (more) {
+                            pc++;
+                        } else {
+                            pc = code[pc];
+                        }
+                    }
+                    case FOR_NEXT -> {
+                        Expression.For loop = (Expression.For) k[code[pc++]];
+                        int reg = code[pc++];
+                        if (regs[reg * 3 + 2] == 0) {
+                            long step = counts[reg * 3 + 2];
+                            long parallel = integerLooper(loop, outers[reg]);
+                            outers[reg].setLong(loop.slot, parallel + step);
+                            counts[reg * 3] = parallel + step;
+                        } else {
+                            double step = regs[reg * 3 + 2];
+                            double parallel = looper(loop, outers[reg]);
+                            outers[reg].setDouble(loop.slot, parallel + step);
+                            regs[reg * 3] = parallel + step;
+                        }
+                        eval.memory.delete();
+                        pc = code[pc];
+                    }
+                    case FOR_SIGNAL -> {
+                        Expression.For loop = (Expression.For) k[code[pc++]];
+                        int reg = code[pc++];
+                        int top = code[pc++];
+                        int exit = code[pc++];
+                        int landing = code[pc++];
+
+                        if (regs[reg * 3 + 2] == 0) {
+                            long step = counts[reg * 3 + 2];
+                            long x = integerLooper(loop, outers[reg]);
+                            long parallel = x + step;
+                            outers[reg].setLong(loop.slot, parallel);
+                            switch (signal) {
+                                case BREAK -> {
+                                    signal = null;
+                                    pc = exit;
+                                }
+                                case CONTINUE -> {
+                                    signal = null;
+                                    eval.memory.delete();
+                                    counts[reg * 3] = x + step;
+                                    pc = top;
+                                }
+                                case FORWARD -> {
+                                    signal = null;
+                                    long by = (long) (step < 0 ? -eval.forwardBy : eval.forwardBy);
+                                    outers[reg].setLong(loop.slot, parallel + by);
+                                    eval.memory.delete();
+                                    counts[reg * 3] = x + by + step;
+                                    pc = top;
+                                }
+                                default -> {
+                                    eval.upperMemory();
+                                    pc = landing;
+                                }
+                            }
+                            continue;
+                        }
+                        double step = regs[reg * 3 + 2];
+                        double x = looper(loop, outers[reg]);
+                        double parallel = x + step;
+                        outers[reg].setDouble(loop.slot, parallel);
+                        switch (signal) {
+                            case BREAK -> {
+                                signal = null;
+                                pc = exit;
+                            }
+                            case CONTINUE -> {
+                                signal = null;
+                                eval.memory.delete();
+                                regs[reg * 3] = x + step;
+                                pc = top;
+                            }
+                            case FORWARD -> {
+                                signal = null;
+                                double by = step < 0 ? -eval.forwardBy : eval.forwardBy;
+                                outers[reg].setDouble(loop.slot, parallel + by);
+                                eval.memory.delete();
+                                regs[reg * 3] = x + by + step;
+                                pc = top;
+                            }
+                            default -> {
+                                eval.upperMemory();
+                                pc = landing;
+                            }
+                        }
+                    }
+                    case EACH_INIT -> {
+                        Expression.Each loop = (Expression.Each) k[code[pc++]];
+                        int reg = code[pc++];
+                        eval.lowerMemory("each", loop.layout);
+                        String target = loop.targetName.lexeme;
+                        Object val = loop.targetSlot == -1
+                                ? eval.memory.getVal(target)
+                                : eval.memory.getAt(loop.targetDepth, loop.targetSlot, target);
+                        if (val instanceof CharSequence string) {
+                            val = string.toString();
+                        } else if (!(val instanceof List<?> || val instanceof NumberArray
+                                || val instanceof Object[])) {
+                            throw new RuntimeException("Needs an array to iterate elements");
+                        }
+                        stack[sp++] = val;
+                        // the element, and the signal of the last one
+                        counts[reg * 3] = 0;
+                        counts[reg * 3 + 1] = -1;
+                    }
+                    case EACH_NEXT -> {
+                        Expression.Each loop = (Expression.Each) k[code[pc++]];
+                        int reg = code[pc++] * 3;
+                        int i = (int) counts[reg];
+                        if (i > 0) {
+                            eval.memory.delete();
+                        }
+                        Object values = stack[sp - 1];
+                        if (i < length(values)) {
+                            counts[reg] = i + 1;
+                            counts[reg + 1] = -1;
+                            eval.memory.defineAt(loop.slot, loop.elementName.lexeme, element(values, i));
+                            pc++;
+                        } else {
+                            pc = code[pc];
+                        }
+                    }
+                    case EACH_SIGNAL -> {
+                        int reg = code[pc++] * 3;
+                        int top = code[pc++];
+                        int exit = code[pc++];
+                        if (signal == Evaluator.Signal.CONTINUE) {
+                            counts[reg + 1] = -1;
+                            pc = top;
+                        } else if (signal == Evaluator.Signal.BREAK) {
+                            counts[reg + 1] = signal.ordinal();
+                            eval.memory.delete();
+                            pc = exit;
+                        } else {
+                            // kept, the next elements are still run
+                            counts[reg + 1] = signal.ordinal();
+                            pc = top;
+                        }
+                        signal = null;
+                    }
+                    case EACH_END -> {
+                        int reg = code[pc++] * 3;
+                        stack[--sp] = null;
+                        eval.upperMemory();
+                        if (counts[reg + 1] != -1) {
+                            signal = SIGNALS[(int) counts[reg + 1]];
+                            pc = code[pc];
+                        } else {
+                            pc++;
+                        }
+                    }
+                    case RAISE -> {
+                        signal = SIGNALS[code[pc++]];
+                        pc = code[pc];
+                    }
+                    case RETURN -> {
+                        eval.returned = value(stack, nums, ints, --sp);
+                        stack[sp] = null;
+                        signal = Evaluator.Signal.RETURN;
+                        pc = code[pc];
+                    }
+                    case FORWARD -> {
+                        if (value(stack, nums, ints, --sp) instanceof Number by
+                                && (by instanceof Double || by instanceof Long)) {
+                            stack[sp] = null;
+                            eval.forwardBy = by.doubleValue();
+                            signal = Evaluator.Signal.FORWARD;
+                            pc = code[pc];
+                        } else {
+                            throw new RuntimeError("Expected number for \"forward;\"");
+                        }
+                    }
+                    case CATCH_BREAK -> {
+                        if (signal == Evaluator.Signal.BREAK) {
+                            signal = null;
+                            pc = code[pc];
+                        } else {
+                            pc++;
+                        }
+                    }
+                    case CATCH_RETURN -> {
+                        if (signal == Evaluator.Signal.RETURN) {
+                            pc = code[pc];
+                        } else {
+                            pc++;
+                        }
+                    }
+                    case CLEAR -> signal = null;
+                    case EXIT -> {
+                        top = base;
+                        if (depth == entry) {
+                            return signal;
+                        }
+                        // a call made by this loop ends, as
+                        // it does in Evaluator.invoke()
+                        eval.upperMemory();
+                        Frame caller = frames[depth - 1];
+                        Object result = null;
+                        if (signal == Evaluator.Signal.TAIL) {
+                            Evaluator.TailCall call = eval.nextCall;
+                            eval.nextCall = null;
+                            caller.discard |= call.discard();
+                            result = eval.compiled(call.fun(), call.values());
+                            if (result == Jit.MISS) {
+                                eval.enter(call.fun(), call.values());
+                                chunk = chunk(call.fun());
+                                continue enter;
+                            }
+                        } else if (signal == Evaluator.Signal.RETURN) {
+                            result = eval.returned;
+                            eval.returned = null;
+                        }
+                        depth--;
+                        caller.result = caller.discard ? null : result;
+                        chunk = caller.chunk;
+                        resume = caller;
+                        continue enter;
+                    }
+                    case EVAL -> push(stack, nums, ints, sp++, eval.evaluate((Expression) k[code[pc++]]));
+                    case EVAL_STATEMENT -> {
+                        Object result = eval.evaluate((Expression) k[code[pc++]]);
+                        if (result instanceof Evaluator.Signal raised) {
+                            signal = raised;
+                            pc = code[pc];
+                        } else {
+                            pc++;
+                        }
+                    }
+                    case DEFINE_FUN -> {
+                        Expression.Fun fun = (Expression.Fun) k[code[pc++]];
+                        eval.defineFun(fun.funId.lexeme, fun);
+                    }
+                    case RESOLVE -> {
+                        Expression.FunCall call = (Expression.FunCall) k[code[pc++]];
+                        Evaluator.Binding binding = eval.binding(call);
+                        Object function = binding.function();
+                        Native aNative = binding.aNative();
+                        if (function == null && aNative == null) {
+                            function = eval.memory.getFun(call.funId.lexeme);
+                            if (function == null) {
+                                // a user fun is not visible from here
+                                aNative = eval.getNative(call.funId.lexeme);
+                            }
+                        }
+                        int n = call.args.size();
+                        if (aNative != null) {
+                            // the args follow, they are all run before
+                            // the native as it would run them
+                            stack[sp++] = aNative;
+                            pc++;
+                        } else if (function instanceof Expression.Fun fun && fun.params.length == n
+                                || function instanceof Imported imported && imported.arity == n) {
+                            stack[sp++] = function;
+                            pc++;
+                        } else {
+                            // errors
+                            push(stack, nums, ints, sp++, eval.visitFunCallExpr(call));
+                            pc = code[pc];
+                        }
+                    }
+                    case INVOKE -> {
+                        Expression.FunCall call = (Expression.FunCall) k[code[pc++]];
+                        int n = code[pc++];
+                        int landing = code[pc++];
+                        Object[] values = new Object[n];
+                        sp -= n;
+                        for (int i = 0; i < n; i++) {
+                            values[i] = value(stack, nums, ints, sp + i);
+                        }
+                        Object callee = stack[--sp];
+                        for (int i = sp; i <= sp + n; i++) {
+                            stack[i] = null;
+                        }
+                        if (callee instanceof Native aNative) {
+                            push(stack, nums, ints, sp++, aNative.call(values));
+                            continue;
+                        } else if (callee instanceof Imported imported) {
+                            push(stack, nums, ints, sp++, eval.call(imported, values));
+                            continue;
+                        }
+                        Expression.Fun fun = (Expression.Fun) callee;
+                        if (landing != -1 && call.caller != null
+                                && eval.tailCall(call, call.binding, fun)) {
+                            // made where the fun was called, by the
+                            // EXIT of its frame or Evaluator.invoke()
+                            eval.nextCall = new Evaluator.TailCall(fun, values, call.discard);
+                            signal = Evaluator.Signal.TAIL;
+                            pc = landing;
+                        } else if (fun.memo) {
+                            push(stack, nums, ints, sp++, eval.memoized(fun, values));
+                        } else {
+                            Object result = eval.compiled(fun, values);
+                            if (result != Jit.MISS) {
+                                push(stack, nums, ints, sp++, result);
+                            } else {
+                                // the fun is run by this loop, the
+                                // caller waits in a frame on the heap
+                                save(chunk, base, sp, pc, regs, counts, outers);
+                                eval.enter(fun, values);
+                                chunk = chunk(fun);
+                                continue enter;
+                            }
+                        }
+                    }
+                    case GUARD -> {
+                        Expression.Inlined inlined = (Expression.Inlined) k[code[pc++]];
+                        Evaluator.Binding binding = eval.binding(inlined.call);
+                        Object function = binding.function();
+                        if (function == null && binding.aNative() == null) {
+                            function = eval.memory.getFun(inlined.call.funId.lexeme);
+                        }
+                        if (function == inlined.fun) {
+                            pc++;
+                        } else {
+                            push(stack, nums, ints, sp++, eval.visitFunCallExpr(inlined.call));
+                            pc = code[pc];
+                        }
+                    }
+                    default -> throw new RuntimeError("Unknown op code " + code[pc - 1]);
+                }
+            }
+        }
+    }
+
+    // numbers are kept unboxed
+    private static void push(Object[] stack, double[] nums, long[] ints, int i, Object value) {
+        if (value instanceof Double number) {
+            stack[i] = NUMBER;
+            nums[i] = number;
+        } else if (value instanceof Long integer) {
+            stack[i] = INTEGER;
+            ints[i] = integer;
+        } else {
+            stack[i] = value;
+        }
+    }
+
+    // the length of a NumberArray is read again, as
+    // in a for over the indexes of the array
+    private static int length(Object values) {
+        if (values instanceof NumberArray array) {
+            return array.length();
+        } else if (values instanceof Object[] array) {
+            return array.length;
+        } else if (values instanceof String string) {
+            return string.length();
+        }
+        return ((List<?>) values).size();
+    }
+
+    private Object element(Object values, int i) {
+        if (values instanceof NumberArray array) {
+            return array.get(i);
+        } else if (values instanceof Object[] array) {
+            return array[i];
+        } else if (values instanceof String string) {
+            return String.valueOf(string.charAt(i));
+        }
+        return eval.evaluate((Expression) ((List<?>) values).get(i));
+    }
+
+    private static int index(Object[] stack, double[] nums, long[] ints, int i) {
+        if (stack[i] == INTEGER) {
+            return Integers.index(ints[i]);
+        } else if (stack[i] == NUMBER) {
+            return (int) nums[i];
+        } else if (stack[i] instanceof Long n) {
+            return Integers.index(n);
+        } else if (stack[i] instanceof Double n) {
+            return n.intValue();
+        }
+        throw new RuntimeError("Needs a number for array access");
+    }
+
+    private static Object value(Object[] stack, double[] nums, long[] ints, int i) {
+        Object value = stack[i];
+        if (value == NUMBER) {
+            return nums[i];
+        } else if (value == INTEGER) {
+            return ints[i];
+        }
+        return value;
+    }
+
+    private static boolean numeric(Object kind) {
+        return kind == NUMBER || kind == INTEGER;
+    }
+
+    private static double widen(Object[] stack, double[] nums, long[] ints, int i) {
+        return stack[i] == INTEGER ? (double) ints[i] : nums[i];
+    }
+
+    // ints[i] and ints[i + 1], a result that
+    // is not an integer is left in nums[i]
+    private static void arithmetic(TokenType operator, Object[] stack,
+                                   double[] nums, long[] ints, int i) {
+        try {
+            ints[i] = Integers.arithmetic(operator, ints[i], ints[i + 1]);
+        } catch (Evaluator.NotNumber e) {
+            stack[i] = NUMBER;
+            nums[i] = (double) e.value;
+        }
+    }
+
+    // the looper is read back, the body may have changed it
+    private static double looper(Expression.For loop, Memory outer) {
+        if (outer.hasDouble(loop.slot)) {
+            return outer.getDouble(loop.slot);
+        } else if (outer.getAt(0, loop.slot, loop.valId.lexeme) instanceof Number val
+                && (val instanceof Double || val instanceof Long)) {
+            return val.doubleValue();
+        }
+        throw new RuntimeError("variable [" + loop.valId.lexeme + "] modified to a non number!");
+    }
+
+    private static long integerLooper(Expression.For loop, Memory outer) {
+        if (outer.hasLong(loop.slot)) {
+            return outer.getLong(loop.slot);
+        } else if (outer.getAt(0, loop.slot, loop.valId.lexeme) instanceof Long val) {
+            return val;
+        }
+        throw new RuntimeError("variable [" + loop.valId.lexeme + "] modified to a non integer!");
+    }
+
+    private static final class Frame {
+        Chunk chunk;
+        int base;
+        int sp;
+        int pc;
+        double[] regs;
+        long[] counts;
+        Memory[] outers;
+        // true if a tail call on the way does
+        // not return its result
+        boolean discard;
+        Object result;
+
+        void clear() {
+            chunk = null;
+            regs = null;
+            counts = null;
+            outers = null;
+            result = null;
+        }
+    }
+}